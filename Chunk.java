@@ -0,0 +1,100 @@
+// a Chunk is a compiled sequence of instructions for the VM. The code
+// array holds opcodes followed by their inline operands; constants and
+// variable names are referenced by index.
+public final class Chunk {
+    public static final int HALT = 0;
+    public static final int CONST = 1;        // k       push constants[k]
+    public static final int LOAD = 2;         // n       push value bound to names[n]
+    public static final int BIND = 3;         // n       bind names[n] to popped value
+    public static final int REBIND = 4;       // n       rebind names[n] to popped value
+    public static final int ADD = 5;
+    public static final int SUB = 6;
+    public static final int MUL = 7;
+    public static final int DIV = 8;
+    public static final int LT = 9;
+    public static final int GT = 10;
+    public static final int LE = 11;
+    public static final int GE = 12;
+    public static final int EQ = 13;
+    public static final int NE = 14;
+    public static final int AND = 15;
+    public static final int OR = 16;
+    public static final int NOT = 17;
+    public static final int NEG = 18;
+    public static final int POP = 19;
+    public static final int WRITE = 20;
+    public static final int READ = 21;
+    public static final int LAMBDA = 22;      // k       push constants[k] unless an error occurred
+    public static final int OPEN_SCOPE = 23;
+    public static final int CLOSE_SCOPE = 24;
+    public static final int JUMP = 25;        // target
+    public static final int JUMP_FALSE = 26;  // target  pop a boolean, jump if false
+    public static final int JUMP_ERROR = 27;  // target  jump if an error occurred
+    public static final int GUARD_ERROR = 28; // target  push an unset value and jump if an error occurred
+    public static final int CHECK_FUN = 29;   // target  report, replace with unset and jump if not a function
+    public static final int CALL = 30;        // c       call through the inline cache c
+    public static final int RETURN = 31;      //         pop the returned value, keep it unless an error occurred
+    public static final int LOAD_SLOT = 32;   // d s n   push the value at (d, s), else of names[n]
+    public static final int DEFINE = 33;      // s n     bind slot s of the innermost frame
+    public static final int ASSIGN = 34;      // d s n   rebind the value at (d, s), else of names[n]
+    public static final int ENTER = 35;       // f       open a scope with frame layout f
+    public static final int EXIT = 36;        // f       close the scope with frame layout f
+    public static final int OPEN_CALL = 37;   //         open the frame of the callee on the stack
+
+    private static final String[] opNames =
+            {"HALT", "CONST", "LOAD", "BIND", "REBIND", "ADD", "SUB", "MUL", "DIV", "LT", "GT",
+                    "LE", "GE", "EQ", "NE", "AND", "OR", "NOT", "NEG", "POP", "WRITE", "READ",
+                    "LAMBDA", "OPEN_SCOPE", "CLOSE_SCOPE", "JUMP", "JUMP_FALSE", "JUMP_ERROR",
+                    "GUARD_ERROR", "CHECK_FUN", "CALL", "RETURN", "LOAD_SLOT", "DEFINE",
+                    "ASSIGN", "ENTER", "EXIT", "OPEN_CALL"};
+
+    // number of inline operands following each opcode
+    private static final int[] operands =
+            {0, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                    1, 0, 0, 1, 1, 1, 1, 1, 1, 0, 3, 2, 3, 1, 1, 0};
+
+    final int[] code;
+    final Main.Value[] constants;
+    final String[] names;
+    // frame layouts of the blocks, used when variables are resolved
+    final String[][] layouts;
+    // the deepest the operand stack can grow while running this chunk
+    final int maxStack;
+    // the inline caches of the calls: the lambda last called at each
+    // call site and its compiled body
+    final Main.Lambda[] callees;
+    final Chunk[] targets;
+
+    Chunk(int[] code, Main.Value[] constants, String[] names, String[][] layouts, int maxStack, int calls) {
+        this.code = code;
+        this.constants = constants;
+        this.names = names;
+        this.layouts = layouts;
+        this.maxStack = maxStack;
+        this.callees = new Main.Lambda[calls];
+        this.targets = new Chunk[calls];
+    }
+
+    public static int operandCount(int op) { return operands[op]; }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        int ip = 0;
+        while (ip < code.length) {
+            final int op = code[ip];
+            sb.append(String.format("%04d %-12s", ip, opNames[op]));
+            for (int i = 1; i <= operands[op]; i++)
+                sb.append(code[ip + i]).append(' ');
+            if (op == CONST || op == LAMBDA)
+                sb.append("(").append(constants[code[ip + 1]]).append(")");
+            else if (op == LOAD || op == BIND || op == REBIND)
+                sb.append("(").append(names[code[ip + 1]]).append(")");
+            else if (op == LOAD_SLOT || op == DEFINE || op == ASSIGN)
+                sb.append("(").append(names[code[ip + operands[op]]]).append(")");
+            sb.append("\n");
+            ip += 1 + operands[op];
+        }
+        return sb.toString();
+    }
+}
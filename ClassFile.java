@@ -0,0 +1,287 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// a ClassFile assembles the bytes of a JVM class for the Jit: a constant
+// pool and methods whose code is emitted instruction by instruction, with
+// labels for the branches. It only knows what the Jit emits. Classes are
+// written as version 49, which the JVM verifies by type inference, so no
+// stack map frames are needed.
+public final class ClassFile {
+    public static final int ICONST_M1 = 0x02;
+    public static final int ICONST_0 = 0x03;
+    public static final int BIPUSH = 0x10;
+    public static final int SIPUSH = 0x11;
+    public static final int LDC_W = 0x13;
+    public static final int ILOAD = 0x15;
+    public static final int ALOAD_0 = 0x2a;
+    public static final int ALOAD_1 = 0x2b;
+    public static final int IALOAD = 0x2e;
+    public static final int ISTORE = 0x36;
+    public static final int IASTORE = 0x4f;
+    public static final int DUP = 0x59;
+    public static final int IADD = 0x60;
+    public static final int ISUB = 0x64;
+    public static final int IMUL = 0x68;
+    public static final int IDIV = 0x6c;
+    public static final int INEG = 0x74;
+    public static final int IAND = 0x7e;
+    public static final int IOR = 0x80;
+    public static final int IXOR = 0x82;
+    public static final int IFEQ = 0x99;
+    public static final int IFNE = 0x9a;
+    public static final int IF_ICMPEQ = 0x9f;
+    public static final int IF_ICMPNE = 0xa0;
+    public static final int IF_ICMPLT = 0xa1;
+    public static final int IF_ICMPGE = 0xa2;
+    public static final int IF_ICMPGT = 0xa3;
+    public static final int IF_ICMPLE = 0xa4;
+    public static final int GOTO = 0xa7;
+    public static final int IRETURN = 0xac;
+    public static final int RETURN = 0xb1;
+    public static final int INVOKESPECIAL = 0xb7;
+    public static final int INVOKESTATIC = 0xb8;
+
+    public static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    // the constant pool, and the index of each entry in it
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final List<Code> methods = new ArrayList<>();
+
+    public ClassFile(String name, String superName, String... interfaceNames) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaces.length; i++)
+            interfaces[i] = classRef(interfaceNames[i]);
+    }
+
+    // ===-----------------------------------------------------------------===
+    // the constant pool
+
+    private int entry(String key, int tag, String utf, int u2a, int u2b, int u4) {
+        final Integer known = entries.get(key);
+        if (known != null) return known;
+        try {
+            poolOut.writeByte(tag);
+            switch (tag) {
+                case CONSTANT_UTF8 -> poolOut.writeUTF(utf);
+                case CONSTANT_INTEGER -> poolOut.writeInt(u4);
+                case CONSTANT_CLASS -> poolOut.writeShort(u2a);
+                default -> {
+                    poolOut.writeShort(u2a);
+                    poolOut.writeShort(u2b);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        entries.put(key, poolCount);
+        return poolCount++;
+    }
+
+    public int utf8(String s) {
+        return entry("U" + s, CONSTANT_UTF8, s, 0, 0, 0);
+    }
+
+    public int integer(int n) {
+        return entry("I" + n, CONSTANT_INTEGER, null, 0, 0, n);
+    }
+
+    public int classRef(String name) {
+        final int utf = utf8(name);
+        return entry("C" + name, CONSTANT_CLASS, null, utf, 0, 0);
+    }
+
+    public int methodRef(String owner, String name, String descriptor) {
+        final int owning = classRef(owner);
+        final int utfName = utf8(name);
+        final int utfType = utf8(descriptor);
+        final int nameAndType = entry("N" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE, null, utfName, utfType, 0);
+        return entry("M" + owner + "." + name + ":" + descriptor, CONSTANT_METHODREF, null, owning, nameAndType, 0);
+    }
+
+    // starts a public method; it is part of the class once it is ended.
+    public Code method(String name, String descriptor) {
+        return new Code(utf8(name), utf8(descriptor));
+    }
+
+    public byte[] toBytes() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final int codeName = utf8("Code");
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i : interfaces)
+                out.writeShort(i);
+            // no fields
+            out.writeShort(0);
+            out.writeShort(methods.size());
+            for (Code code : methods)
+                code.writeTo(out, codeName);
+            // no attributes
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // ===-----------------------------------------------------------------===
+    // the code of a method. Like the Compiler, the emitter is told the
+    // stack effect of each instruction so that it can track the maximum
+    // depth of the operand stack.
+    public final class Code {
+        private final int name;
+        private final int descriptor;
+        private byte[] code = new byte[256];
+        private int size = 0;
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals = 0;
+        // the position of each label, or -1 while it is not yet placed
+        private int[] labels = new int[16];
+        private int labelCount = 0;
+        // the branches to patch: the position of the instruction, of its
+        // offset, and the label it targets
+        private final List<int[]> fixups = new ArrayList<>();
+
+        private Code(int name, int descriptor) {
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        private void put(int b) {
+            if (size == code.length) code = Arrays.copyOf(code, size * 2);
+            code[size++] = (byte) b;
+        }
+
+        private void put2(int u2) {
+            put(u2 >> 8);
+            put(u2);
+        }
+
+        // changes the tracked stack depth, for code that is reached with
+        // a different stack than the instruction before it left.
+        public void adjust(int effect) {
+            stack += effect;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        public void emit(int op, int effect) {
+            put(op);
+            adjust(effect);
+        }
+
+        // ILOAD and ISTORE of a local variable.
+        public void emitLocal(int op, int local, int effect) {
+            put(op);
+            put(local);
+            maxLocals = Math.max(maxLocals, local + 1);
+            adjust(effect);
+        }
+
+        // a call to a method; the effect is that of its arguments and result.
+        public void emitInvoke(int op, int method, int effect) {
+            put(op);
+            put2(method);
+            adjust(effect);
+        }
+
+        public void emitConstant(int n) {
+            if (n >= -1 && n <= 5) {
+                put(ICONST_0 + n);
+            } else if (n >= Byte.MIN_VALUE && n <= Byte.MAX_VALUE) {
+                put(BIPUSH);
+                put(n);
+            } else if (n >= Short.MIN_VALUE && n <= Short.MAX_VALUE) {
+                put(SIPUSH);
+                put2(n);
+            } else {
+                put(LDC_W);
+                put2(integer(n));
+            }
+            adjust(1);
+        }
+
+        public int newLabel() {
+            if (labelCount == labels.length) labels = Arrays.copyOf(labels, labelCount * 2);
+            labels[labelCount] = -1;
+            return labelCount++;
+        }
+
+        public void place(int label) {
+            labels[label] = size;
+        }
+
+        public void emitJump(int op, int label, int effect) {
+            fixups.add(new int[]{size, size + 1, label});
+            put(op);
+            put2(0);
+            adjust(effect);
+        }
+
+        public void reserveLocals(int count) {
+            maxLocals = Math.max(maxLocals, count);
+        }
+
+        // patches the branches and adds the method to the class.
+        public void end() {
+            if (size > 0xffff)
+                throw new IllegalStateException("method too large");
+            for (int[] fixup : fixups) {
+                final int offset = labels[fixup[2]] - fixup[0];
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                    throw new IllegalStateException("branch offset out of range");
+                code[fixup[1]] = (byte) (offset >> 8);
+                code[fixup[1] + 1] = (byte) offset;
+            }
+            methods.add(this);
+        }
+
+        private void writeTo(DataOutputStream out, int codeName) throws IOException {
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + size);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(size);
+            out.write(code, 0, size);
+            // no exception table and no attributes
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+    }
+}
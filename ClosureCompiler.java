@@ -0,0 +1,361 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+// the ClosureCompiler turns a resolved statement sequence into a tree of
+// Java lambdas before it runs. Every expression is compiled for the way
+// its value is used, as a Value, an int or a boolean, with its operator,
+// constant operands and variable address bound into the lambda. Running
+// the code does not switch on operators or go through the AST.
+//
+// The code does exactly what exec() and eval() do, errors included: the
+// error flag is still checked wherever a node checks it. Calls go
+// through Call.call(), and a lambda's body is compiled along with it and
+// run by Lambda.run().
+public final class ClosureCompiler {
+    private static final Runnable NOTHING = () -> { };
+
+    private ClosureCompiler() { }
+
+    public static Runnable compile(Main.Stmt stmt) {
+        return stmts(stmt);
+    }
+
+    private static Runnable stmts(Main.Stmt stmt) {
+        final List<Runnable> code = new ArrayList<>();
+        for (Main.Stmt s = stmt; s != null; s = s.getNext())
+            if (!(s instanceof Main.NullStmt))
+                code.add(stmt(s));
+        switch (code.size()) {
+            case 0:
+                return NOTHING;
+            case 1:
+                return code.get(0);
+            case 2: {
+                final Runnable first = code.get(0);
+                final Runnable second = code.get(1);
+                return () -> {
+                    first.run();
+                    second.run();
+                };
+            }
+            default: {
+                final Runnable[] all = code.toArray(new Runnable[0]);
+                return () -> {
+                    for (Runnable r : all)
+                        r.run();
+                };
+            }
+        }
+    }
+
+    private static Runnable stmt(Main.Stmt s) {
+        if (s instanceof Main.Block) {
+            final Main.Block block = (Main.Block) s;
+            final Runnable body = stmts(block.getBody());
+            if (Main.resolver != null) {
+                final String[] names = block.getFrameNames();
+                return () -> {
+                    Main.table.enterFrame(names);
+                    body.run();
+                    Main.table.exitFrame(names);
+                };
+            }
+            return () -> {
+                Main.table.openScope();
+                body.run();
+                Main.table.closeScope();
+            };
+        } else if (s instanceof Main.IfStmt) {
+            final Main.IfStmt ifStmt = (Main.IfStmt) s;
+            final BooleanSupplier condition = bool(ifStmt.getCondition());
+            final Runnable ifBlock = stmts(ifStmt.getIfBlock());
+            if (ifStmt.getElseBlock() == null) {
+                return () -> {
+                    if (!Main.error && condition.getAsBoolean())
+                        ifBlock.run();
+                };
+            }
+            final Runnable elseBlock = stmts(ifStmt.getElseBlock());
+            return () -> {
+                if (!Main.error) {
+                    if (condition.getAsBoolean()) ifBlock.run();
+                    else elseBlock.run();
+                }
+            };
+        } else if (s instanceof Main.WhileStmt) {
+            final Main.WhileStmt whileStmt = (Main.WhileStmt) s;
+            final BooleanSupplier condition = bool(whileStmt.getCondition());
+            final Runnable body = stmts(whileStmt.getBody());
+            return () -> {
+                if (!Main.error) {
+                    while (condition.getAsBoolean())
+                        body.run();
+                }
+            };
+        } else if (s instanceof Main.AutoStmt) {
+            final Main.AutoStmt auto = (Main.AutoStmt) s;
+            final String name = auto.getLhs().getValue();
+            final Supplier<Main.Value> rhs = value(auto.getRhs());
+            if (Main.resolver != null) {
+                final int slot = auto.getLhs().getSlot();
+                return () -> {
+                    if (!Main.error) Main.table.define(slot, name, rhs.get());
+                };
+            }
+            return () -> {
+                if (!Main.error) Main.table.bind(name, rhs.get());
+            };
+        } else if (s instanceof Main.AssignStmt) {
+            final Main.AssignStmt assign = (Main.AssignStmt) s;
+            final String name = assign.getLhs().getValue();
+            final Supplier<Main.Value> rhs = value(assign.getRhs());
+            if (Main.resolver != null) {
+                final int depth = assign.getLhs().getDepth();
+                final int slot = assign.getLhs().getSlot();
+                return () -> {
+                    if (!Main.error) Main.table.assign(depth, slot, name, rhs.get());
+                };
+            }
+            return () -> {
+                if (!Main.error) Main.table.rebing(name, rhs.get());
+            };
+        } else if (s instanceof Main.Write) {
+            final Supplier<Main.Value> value = value(((Main.Write) s).getValue());
+            return () -> {
+                final Main.Value val = value.get();
+                if (!Main.error) val.writeTo();
+            };
+        } else if (s instanceof Main.ExprStmt) {
+            final Supplier<Main.Value> value = value(((Main.ExprStmt) s).getValue());
+            return () -> {
+                if (!Main.error) value.get();
+            };
+        }
+        throw new Error("cannot compile " + s.getClass().getSimpleName());
+    }
+
+    // ===-----------------------------------------------------------------===
+    // expressions used as values, like eval()
+
+    private static Supplier<Main.Value> value(Main.Expr expr) {
+        if (expr instanceof Main.Number || expr instanceof Main.BoolExpr) {
+            final Main.Value constant = expr.eval();
+            return () -> constant;
+        } else if (expr instanceof Main.Identifier) {
+            final Main.Identifier id = (Main.Identifier) expr;
+            final String name = id.getValue();
+            if (Main.resolver != null) {
+                final int depth = id.getDepth();
+                final int slot = id.getSlot();
+                return () -> Main.error ? Main.Value.UNSET : Main.table.load(depth, slot, name);
+            }
+            return () -> Main.error ? Main.Value.UNSET : Main.table.lookup(name);
+        } else if (expr instanceof Main.ArithmeticOp) {
+            final Main.ArithmeticOp op = (Main.ArithmeticOp) expr;
+            if (op.getOp() == Main.Oper.DIV) {
+                // a division by zero yields the unset value here
+                final IntSupplier left = number(op.getLeft());
+                final IntSupplier right = number(op.getRight());
+                return () -> {
+                    final int l = left.getAsInt();
+                    final int r = right.getAsInt();
+                    if (r == 0) {
+                        Main.ArithmeticOp.divisionByZero();
+                        return Main.Value.UNSET;
+                    }
+                    return Main.Value.of(l / r);
+                };
+            }
+            final IntSupplier number = number(expr);
+            return () -> Main.Value.of(number.getAsInt());
+        } else if (expr instanceof Main.NegationOp) {
+            final IntSupplier number = number(expr);
+            return () -> Main.Value.of(number.getAsInt());
+        } else if (expr instanceof Main.ComparisonOp && ((Main.ComparisonOp) expr).getOp() == Main.Oper.NE) {
+            // != has no case and yields the unset value
+            final Main.ComparisonOp op = (Main.ComparisonOp) expr;
+            final IntSupplier left = number(op.getLeft());
+            final IntSupplier right = number(op.getRight());
+            return () -> {
+                left.getAsInt();
+                right.getAsInt();
+                return Main.Value.UNSET;
+            };
+        } else if (expr instanceof Main.ComparisonOp || expr instanceof Main.BooleanOp
+                || expr instanceof Main.NotOp) {
+            final BooleanSupplier bool = bool(expr);
+            return () -> Main.Value.of(bool.getAsBoolean());
+        } else if (expr instanceof Main.Read) {
+            final Main.Read read = (Main.Read) expr;
+            return read::eval;
+        } else if (expr instanceof Main.Lambda) {
+            final Main.Lambda lambda = (Main.Lambda) expr;
+            if (lambda.getCode() == null)
+                lambda.setCode(stmts(lambda.getBody()));
+            return lambda::eval;
+        } else if (expr instanceof Main.ReturnExpr) {
+            return ret((Main.ReturnExpr) expr);
+        } else if (expr instanceof Main.Call) {
+            final Main.Call call = (Main.Call) expr;
+            final Supplier<Main.Value> function = value(call.getFunExpr());
+            final Supplier<Main.Value> argument = value(call.getArg());
+            return () -> Main.error ? Main.Value.UNSET : Main.Call.call(function.get(), argument);
+        }
+        throw new Error("cannot compile " + expr.getClass().getSimpleName());
+    }
+
+    private static Supplier<Main.Value> ret(Main.ReturnExpr ret) {
+        if (ret.isTail()) {
+            // a call in tail position is left to the enclosing call; when
+            // it cannot be, it is made here as any other call
+            final Main.Call call = (Main.Call) ret.getValue();
+            final Supplier<Main.Value> function = value(call.getFunExpr());
+            final Supplier<Main.Value> argument = value(call.getArg());
+            return () -> {
+                if (Main.Call.tailCall(function, argument))
+                    return Main.Value.UNSET;
+                final Main.Value val = Main.error ? Main.Value.UNSET
+                        : Main.Call.call(function.get(), argument);
+                if (!Main.error) Main.returnVariables.push(val);
+                return Main.Value.UNSET;
+            };
+        }
+        final Supplier<Main.Value> value = value(ret.getValue());
+        return () -> {
+            final Main.Value val = value.get();
+            if (!Main.error) Main.returnVariables.push(val);
+            return Main.Value.UNSET;
+        };
+    }
+
+    // ===-----------------------------------------------------------------===
+    // expressions used as numbers, like evalNumber()
+
+    private static IntSupplier number(Main.Expr expr) {
+        if (expr instanceof Main.Number) {
+            final int n = ((Main.Number) expr).getValue();
+            return () -> n;
+        } else if (expr instanceof Main.ArithmeticOp) {
+            return arithmetic((Main.ArithmeticOp) expr);
+        } else if (expr instanceof Main.NegationOp) {
+            final IntSupplier right = number(((Main.NegationOp) expr).getRight());
+            return () -> -1 * right.getAsInt();
+        }
+        final Supplier<Main.Value> value = value(expr);
+        return () -> value.get().getNumber();
+    }
+
+    private static IntSupplier arithmetic(Main.ArithmeticOp op) {
+        final IntSupplier left = number(op.getLeft());
+        // a constant right operand is bound into the code
+        if (op.getRight() instanceof Main.Number) {
+            final int r = ((Main.Number) op.getRight()).getValue();
+            switch (op.getOp()) {
+                case ADD:
+                    return () -> left.getAsInt() + r;
+                case SUB:
+                    return () -> left.getAsInt() - r;
+                case MUL:
+                    return () -> left.getAsInt() * r;
+                default:
+                    if (r != 0) return () -> left.getAsInt() / r;
+            }
+        }
+        final IntSupplier right = number(op.getRight());
+        switch (op.getOp()) {
+            case ADD:
+                return () -> left.getAsInt() + right.getAsInt();
+            case SUB:
+                return () -> left.getAsInt() - right.getAsInt();
+            case MUL:
+                return () -> left.getAsInt() * right.getAsInt();
+            default:
+                return () -> {
+                    final int l = left.getAsInt();
+                    final int r = right.getAsInt();
+                    if (r == 0) {
+                        Main.ArithmeticOp.divisionByZero();
+                        // the unset result is not a number, just as in eval()
+                        return Main.Value.UNSET.getNumber();
+                    }
+                    return l / r;
+                };
+        }
+    }
+
+    // ===-----------------------------------------------------------------===
+    // expressions used as booleans, like evalBoolean()
+
+    private static BooleanSupplier bool(Main.Expr expr) {
+        if (expr instanceof Main.BoolExpr) {
+            final boolean b = ((Main.BoolExpr) expr).getValue();
+            return () -> b;
+        } else if (expr instanceof Main.ComparisonOp) {
+            return comparison((Main.ComparisonOp) expr);
+        } else if (expr instanceof Main.BooleanOp) {
+            final Main.BooleanOp op = (Main.BooleanOp) expr;
+            final BooleanSupplier left = bool(op.getLeft());
+            final BooleanSupplier right = bool(op.getRight());
+            // both operands are always evaluated
+            if (op.getOp() == Main.Oper.AND) {
+                return () -> {
+                    final boolean l = left.getAsBoolean();
+                    return right.getAsBoolean() && l;
+                };
+            }
+            return () -> {
+                final boolean l = left.getAsBoolean();
+                return right.getAsBoolean() || l;
+            };
+        } else if (expr instanceof Main.NotOp) {
+            final BooleanSupplier right = bool(((Main.NotOp) expr).getRight());
+            return () -> !right.getAsBoolean();
+        }
+        final Supplier<Main.Value> value = value(expr);
+        return () -> value.get().getBoolean();
+    }
+
+    private static BooleanSupplier comparison(Main.ComparisonOp op) {
+        final IntSupplier left = number(op.getLeft());
+        if (op.getOp() == Main.Oper.NE) {
+            final IntSupplier right = number(op.getRight());
+            return () -> {
+                left.getAsInt();
+                right.getAsInt();
+                return Main.Value.UNSET.getBoolean();
+            };
+        }
+        // a constant right operand is bound into the code
+        if (op.getRight() instanceof Main.Number) {
+            final int r = ((Main.Number) op.getRight()).getValue();
+            switch (op.getOp()) {
+                case EQ:
+                    return () -> left.getAsInt() == r;
+                case LT:
+                    return () -> left.getAsInt() < r;
+                case GT:
+                    return () -> left.getAsInt() > r;
+                case LE:
+                    return () -> left.getAsInt() <= r;
+                default:
+                    return () -> left.getAsInt() >= r;
+            }
+        }
+        final IntSupplier right = number(op.getRight());
+        switch (op.getOp()) {
+            case EQ:
+                return () -> left.getAsInt() == right.getAsInt();
+            case LT:
+                return () -> left.getAsInt() < right.getAsInt();
+            case GT:
+                return () -> left.getAsInt() > right.getAsInt();
+            case LE:
+                return () -> left.getAsInt() <= right.getAsInt();
+            default:
+                return () -> left.getAsInt() >= right.getAsInt();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// the Compiler translates a sequence of statements, as produced by
+// Parser.init(), into a Chunk for the VM. Every construct is compiled so
+// that it has exactly the same observable behavior as its eval()/exec()
+// counterpart in Main, including the checks of the global error flag.
+public final class Compiler {
+    private int[] code = new int[64];
+    private int size = 0;
+    private final List<Main.Value> constants = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> nameIndex = new HashMap<>();
+    private final List<String[]> layouts = new ArrayList<>();
+    // the number of call sites, each with its own inline cache
+    private int calls = 0;
+    // variables are accessed through frame slots once they are resolved
+    private final boolean slots = Main.resolver != null;
+    // current and maximum depth of the operand stack
+    private int depth = 0;
+    private int maxDepth = 0;
+
+    private Compiler() { }
+
+    public static Chunk compile(Main.Stmt stmt) {
+        final Compiler compiler = new Compiler();
+        compiler.stmt(stmt);
+        compiler.emit(Chunk.HALT);
+        return compiler.finish();
+    }
+
+    private Chunk finish() {
+        return new Chunk(Arrays.copyOf(code, size), constants.toArray(new Main.Value[0]),
+                names.toArray(new String[0]), layouts.toArray(new String[0][]), maxDepth, calls);
+    }
+
+    // ===-----------------------------------------------------------------===
+    // statements
+
+    private void stmt(Main.Stmt stmt) {
+        for (Main.Stmt s = stmt; s != null; s = s.getNext()) {
+            if (s instanceof Main.NullStmt) continue;
+            if (s instanceof Main.Block && slots) {
+                final int layout = layouts.size();
+                layouts.add(((Main.Block) s).getFrameNames());
+                emit(Chunk.ENTER, layout, 0);
+                stmt(((Main.Block) s).getBody());
+                emit(Chunk.EXIT, layout, 0);
+            } else if (s instanceof Main.Block) {
+                emit(Chunk.OPEN_SCOPE);
+                stmt(((Main.Block) s).getBody());
+                emit(Chunk.CLOSE_SCOPE);
+            } else if (s instanceof Main.IfStmt) {
+                ifStmt((Main.IfStmt) s);
+            } else if (s instanceof Main.WhileStmt) {
+                whileStmt((Main.WhileStmt) s);
+            } else if (s instanceof Main.AutoStmt) {
+                final Main.AutoStmt auto = (Main.AutoStmt) s;
+                final int skip = emitJump(Chunk.JUMP_ERROR);
+                expr(auto.getRhs());
+                if (slots) emitSlot(Chunk.DEFINE, auto.getLhs(), -1);
+                else emit(Chunk.BIND, name(auto.getLhs().getValue()), -1);
+                patch(skip);
+            } else if (s instanceof Main.AssignStmt) {
+                final Main.AssignStmt assign = (Main.AssignStmt) s;
+                final int skip = emitJump(Chunk.JUMP_ERROR);
+                expr(assign.getRhs());
+                if (slots) emitSlot(Chunk.ASSIGN, assign.getLhs(), -1);
+                else emit(Chunk.REBIND, name(assign.getLhs().getValue()), -1);
+                patch(skip);
+            } else if (s instanceof Main.Write) {
+                expr(((Main.Write) s).getValue());
+                emit(Chunk.WRITE, -1);
+            } else if (s instanceof Main.ExprStmt) {
+                final int skip = emitJump(Chunk.JUMP_ERROR);
+                expr(((Main.ExprStmt) s).getValue());
+                emit(Chunk.POP, -1);
+                patch(skip);
+            } else {
+                throw new Error("cannot compile " + s.getClass().getSimpleName());
+            }
+        }
+    }
+
+    private void ifStmt(Main.IfStmt stmt) {
+        final int end = emitJump(Chunk.JUMP_ERROR);
+        expr(stmt.getCondition());
+        final int otherwise = emitJump(Chunk.JUMP_FALSE, -1);
+        stmt(stmt.getIfBlock());
+        if (stmt.getElseBlock() != null) {
+            final int skip = emitJump(Chunk.JUMP);
+            patch(otherwise);
+            stmt(stmt.getElseBlock());
+            patch(skip);
+        } else {
+            patch(otherwise);
+        }
+        patch(end);
+    }
+
+    private void whileStmt(Main.WhileStmt stmt) {
+        final int end = emitJump(Chunk.JUMP_ERROR);
+        final int top = size;
+        expr(stmt.getCondition());
+        final int exit = emitJump(Chunk.JUMP_FALSE, -1);
+        stmt(stmt.getBody());
+        emit(Chunk.JUMP, top, 0);
+        patch(exit);
+        patch(end);
+    }
+
+    // ===-----------------------------------------------------------------===
+    // expressions; each one leaves exactly one value on the stack.
+
+    private void expr(Main.Expr expr) {
+        if (expr instanceof Main.Identifier && slots) {
+            emitSlot(Chunk.LOAD_SLOT, (Main.Identifier) expr, 1);
+        } else if (expr instanceof Main.Identifier) {
+            emit(Chunk.LOAD, name(((Main.Identifier) expr).getValue()), 1);
+        } else if (expr instanceof Main.Number) {
+            emit(Chunk.CONST, constant(Main.Value.of(((Main.Number) expr).getValue())), 1);
+        } else if (expr instanceof Main.BoolExpr) {
+            emit(Chunk.CONST, constant(Main.Value.of(((Main.BoolExpr) expr).getValue())), 1);
+        } else if (expr instanceof Main.ArithmeticOp) {
+            final Main.ArithmeticOp op = (Main.ArithmeticOp) expr;
+            binary(op.getLeft(), op.getRight(), op.getOp());
+        } else if (expr instanceof Main.ComparisonOp) {
+            final Main.ComparisonOp op = (Main.ComparisonOp) expr;
+            binary(op.getLeft(), op.getRight(), op.getOp());
+        } else if (expr instanceof Main.BooleanOp) {
+            final Main.BooleanOp op = (Main.BooleanOp) expr;
+            binary(op.getLeft(), op.getRight(), op.getOp());
+        } else if (expr instanceof Main.NegationOp) {
+            expr(((Main.NegationOp) expr).getRight());
+            emit(Chunk.NEG, 0);
+        } else if (expr instanceof Main.NotOp) {
+            expr(((Main.NotOp) expr).getRight());
+            emit(Chunk.NOT, 0);
+        } else if (expr instanceof Main.Read) {
+            emit(Chunk.READ, 1);
+        } else if (expr instanceof Main.Lambda) {
+            emit(Chunk.LAMBDA, constant(Main.Value.of((Main.Lambda) expr)), 1);
+        } else if (expr instanceof Main.ReturnExpr) {
+            expr(((Main.ReturnExpr) expr).getValue());
+            emit(Chunk.RETURN, -1);
+            emit(Chunk.CONST, constant(Main.Value.UNSET), 1);
+        } else if (expr instanceof Main.Call) {
+            call((Main.Call) expr);
+        } else {
+            throw new Error("cannot compile " + expr.getClass().getSimpleName());
+        }
+    }
+
+    private void binary(Main.Expr left, Main.Expr right, Main.Oper op) {
+        expr(left);
+        expr(right);
+        switch (op) {
+            case ADD -> emit(Chunk.ADD, -1);
+            case SUB -> emit(Chunk.SUB, -1);
+            case MUL -> emit(Chunk.MUL, -1);
+            case DIV -> emit(Chunk.DIV, -1);
+            case LT -> emit(Chunk.LT, -1);
+            case GT -> emit(Chunk.GT, -1);
+            case LE -> emit(Chunk.LE, -1);
+            case GE -> emit(Chunk.GE, -1);
+            case EQ -> emit(Chunk.EQ, -1);
+            case NE -> emit(Chunk.NE, -1);
+            case AND -> emit(Chunk.AND, -1);
+            case OR -> emit(Chunk.OR, -1);
+            default -> throw new Error("invalid binary operator " + op);
+        }
+    }
+
+    // a call evaluates the callee and checks that it is a function, then
+    // opens the scope before the argument is evaluated, just like
+    // Call.eval(). A closure's scope is opened by CALL itself, after the
+    // argument.
+    private void call(Main.Call call) {
+        final int guard = emitJump(Chunk.GUARD_ERROR);
+        expr(call.getFunExpr());
+        final int notFun = emitJump(Chunk.CHECK_FUN);
+        if (!Main.closures)
+            emit(slots ? Chunk.OPEN_CALL : Chunk.OPEN_SCOPE);
+        expr(call.getArg());
+        emit(Chunk.CALL, calls++, -1);
+        // GUARD_ERROR and CHECK_FUN push the unset value when they jump
+        patch(guard);
+        patch(notFun);
+    }
+
+    // ===-----------------------------------------------------------------===
+    // code emission
+
+    private void emit(int op) {
+        ensure(1);
+        code[size++] = op;
+    }
+
+    private void emit(int op, int effect) {
+        emit(op);
+        bump(effect);
+    }
+
+    private void emit(int op, int operand, int effect) {
+        ensure(2);
+        code[size++] = op;
+        code[size++] = operand;
+        bump(effect);
+    }
+
+    // emits a slot access: the depth (unless defining), slot and name.
+    private void emitSlot(int op, Main.Identifier id, int effect) {
+        ensure(4);
+        code[size++] = op;
+        if (op != Chunk.DEFINE)
+            code[size++] = id.getDepth();
+        code[size++] = id.getSlot();
+        code[size++] = name(id.getValue());
+        bump(effect);
+    }
+
+    private int emitJump(int op) {
+        return emitJump(op, 0);
+    }
+
+    // emits a jump with a placeholder target; returns the operand's index.
+    private int emitJump(int op, int effect) {
+        emit(op, -1, effect);
+        return size - 1;
+    }
+
+    // makes the jump at the given operand index land on the next instruction.
+    private void patch(int operand) {
+        code[operand] = size;
+    }
+
+    private void bump(int effect) {
+        depth += effect;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private void ensure(int n) {
+        if (size + n > code.length)
+            code = Arrays.copyOf(code, Math.max(code.length * 2, size + n));
+    }
+
+    private int constant(Main.Value value) {
+        constants.add(value);
+        return constants.size() - 1;
+    }
+
+    private int name(String name) {
+        return nameIndex.computeIfAbsent(name, n -> {
+            names.add(n);
+            return names.size() - 1;
+        });
+    }
+}
@@ -0,0 +1,183 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// the Java Flight Recorder events of the interpreter, so that a recording
+// shows where a program spends its time next to what the JVM did then.
+// They are emitted with -jfr:
+//   java -XX:StartFlightRecording:filename=run.jfr -cp out Main run -jfr f.mbh
+//
+// Events that last are only recorded when they take longer than their
+// threshold, which the settings of a recording may change, as in a copy of
+// default.jfc that sets mybrainhurts.Call#threshold to 0 ms.
+//
+// Without -jfr no event class is ever loaded: loading the first one sets
+// up the recorder, which takes a good part of a second. The methods below
+// return null instead of an event then, or while the event is not being
+// recorded, and the interpreter runs as if there were no events.
+final class Events {
+    private static final String CATEGORY = "mybrainhurts";
+
+    // set by -jfr, before anything runs
+    static boolean enabled = false;
+
+    private Events() { }
+
+    @Name("mybrainhurts.Call")
+    @Label("Call")
+    @Category(CATEGORY)
+    @Description("A call of a lambda, including the calls it makes in tail position")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class Call extends Event {
+        @Label("Lambda")
+        @Description("The name the lambda was bound to where it was created, and its position")
+        String lambda;
+
+        @Label("Depth")
+        @Description("The number of calls running, this one included")
+        int depth;
+    }
+
+    @Name("mybrainhurts.Scope")
+    @Label("Scope")
+    @Category(CATEGORY)
+    @Description("A scope of the symbol table, from when it is opened until it is closed; with -slots, only a scope that declares a variable has a frame and an event")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class Scope extends Event {
+        @Label("Depth")
+        @Description("The number of scopes open, this one included")
+        int depth;
+
+        @Label("Bindings")
+        @Description("The number of variables bound in the scope")
+        int bindings;
+    }
+
+    @Name("mybrainhurts.Lex")
+    @Label("Lex")
+    @Category(CATEGORY)
+    @Description("Reading all the tokens of an input at once; a script is lexed while it is parsed, within its Parse event")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class Lex extends Event {
+        @Label("Tokens")
+        int tokens;
+    }
+
+    @Name("mybrainhurts.Parse")
+    @Label("Parse")
+    @Category(CATEGORY)
+    @Description("Parsing a program or a REPL line, including the lexing of a program")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class Parse extends Event {
+        @Label("Lines")
+        @Description("The line the parser stopped at")
+        int lines;
+    }
+
+    @Name("mybrainhurts.Error")
+    @Label("Error")
+    @Category(CATEGORY)
+    @Description("An error reported by the interpreter")
+    static final class Error extends Event {
+        @Label("Message")
+        String message;
+    }
+
+    // events that are never committed, to ask whether calls and scopes are
+    // being recorded before creating any; they happen too often to create
+    // one each time only to drop it.
+    private static final class Probes {
+        static final Call CALL = new Call();
+        static final Scope SCOPE = new Scope();
+    }
+
+    // begins the event of a call, or returns null.
+    static Call call() {
+        if (!enabled || !Probes.CALL.isEnabled()) return null;
+        final Call event = new Call();
+        event.begin();
+        return event;
+    }
+
+    static void called(Call event, Main.Lambda lambda, int depth) {
+        if (event == null) return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.lambda = lambda.describe();
+            event.depth = depth;
+            event.commit();
+        }
+    }
+
+    // begins the event of a scope, or returns null.
+    static Scope scope() {
+        if (!enabled || !Probes.SCOPE.isEnabled()) return null;
+        final Scope event = new Scope();
+        event.begin();
+        return event;
+    }
+
+    static void closed(Scope event, int depth, int bindings) {
+        if (event == null) return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.depth = depth;
+            event.bindings = bindings;
+            event.commit();
+        }
+    }
+
+    // begins the event of lexing an input, or returns null. Only a token
+    // list is lexed on its own: a lexer that hands its tokens to the parser
+    // one by one, as for a script, is timed by the Parse event.
+    static Lex lex() {
+        if (!enabled) return null;
+        final Lex event = new Lex();
+        event.begin();
+        return event;
+    }
+
+    static void lexed(Lex event, int tokens) {
+        if (event == null) return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.tokens = tokens;
+            event.commit();
+        }
+    }
+
+    // begins the event of parsing, or returns null.
+    static Parse parse() {
+        if (!enabled) return null;
+        final Parse event = new Parse();
+        event.begin();
+        return event;
+    }
+
+    static void parsed(Parse event, int lines) {
+        if (event == null) return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.lines = lines;
+            event.commit();
+        }
+    }
+
+    // records an error that is being reported.
+    static void error(String message) {
+        if (!enabled) return;
+        final Error event = new Error();
+        if (event.shouldCommit()) {
+            event.message = message;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// an Input is the one source of everything the interpreter reads: the
+// lines of the REPL and the numbers of read expressions. Both share its
+// buffer, so nothing read ahead for one of them is lost to the other.
+public final class Input {
+    // returned by nextInt() when there is no valid number
+    public static final long NONE = Long.MIN_VALUE;
+
+    // either a stream read through the buffer, or a mapped file
+    private final InputStream stream;
+    private final ByteBuffer mapped;
+    private final byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+
+    private Input(InputStream stream, ByteBuffer mapped) {
+        this.stream = stream;
+        this.mapped = mapped;
+        this.buffer = stream != null ? new byte[1 << 16] : null;
+        if (mapped != null) limit = mapped.limit();
+    }
+
+    public static Input stdin() {
+        return new Input(new FileInputStream(FileDescriptor.in), null);
+    }
+
+    // maps the file into memory; it must be smaller than 2GB.
+    public static Input mapped(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new Input(null, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // returns the next byte without consuming it, or -1 at the end.
+    private int peek() {
+        if (position == limit) {
+            if (stream == null) return -1;
+            try {
+                limit = stream.read(buffer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return stream != null ? buffer[position] & 0xff : mapped.get(position) & 0xff;
+    }
+
+    private static boolean isSpace(int c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    // reads the rest of the current line, without its line end; returns
+    // null at the end of the input.
+    public String readLine() {
+        int c = peek();
+        if (c < 0) return null;
+        final StringBuilder sb = new StringBuilder();
+        while (c >= 0 && c != '\n') {
+            sb.append((char) c);
+            position++;
+            c = peek();
+        }
+        if (c == '\n') position++;
+        final int length = sb.length();
+        if (length > 0 && sb.charAt(length - 1) == '\r') sb.setLength(length - 1);
+        return sb.toString();
+    }
+
+    // scans the next whitespace separated word as a decimal int, without
+    // allocating. Returns NONE if the word is not a number or is out of
+    // range, or at the end of the input. Blanks and at most one line end
+    // after the word are consumed too, so a number typed on a line of its
+    // own does not leave an empty line behind.
+    public long nextInt() {
+        int c = peek();
+        while (isSpace(c)) {
+            position++;
+            c = peek();
+        }
+        if (c < 0) return NONE;
+        boolean negative = false;
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            position++;
+            c = peek();
+        }
+        long n = 0;
+        boolean valid = c >= '0' && c <= '9';
+        while (c >= 0 && !isSpace(c)) {
+            if (c >= '0' && c <= '9' && n <= Integer.MAX_VALUE + 1L) n = n * 10 + (c - '0');
+            else valid = false;
+            position++;
+            c = peek();
+        }
+        while (c == ' ' || c == '\t' || c == '\r') {
+            position++;
+            c = peek();
+        }
+        if (c == '\n') position++;
+        if (negative) n = -n;
+        if (!valid || n < Integer.MIN_VALUE || n > Integer.MAX_VALUE) return NONE;
+        return n;
+    }
+}
@@ -0,0 +1,501 @@
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// the Jit compiles hot while loops to JVM bytecode, so that HotSpot can
+// optimize them like ordinary Java. WhileStmt counts its back edges and
+// hands the loop over once it has looped THRESHOLD times.
+//
+// A compiled loop keeps every variable it uses in a JVM local of type
+// int. On entry, the variables are read from the symbol table and their
+// types checked: each must be a number or a boolean. The loop is compiled
+// for those types, and a new combination gets its own compiled code. When
+// it ends, the variables the loop assigned are stored back.
+//
+// Only loops of assignments, writes, ifs, blocks and nested whiles over
+// numbers and booleans are compiled; anything that could fail in a way
+// the compiled code does not reproduce keeps the loop in the interpreter.
+// Dividing by zero cannot be ruled out statically, so a division that is
+// about to fail deoptimizes: the compiled code stores the variables back
+// and the interpreter resumes at the statement that divides, which then
+// reports the error as usual.
+public final class Jit {
+    // the number of back edges after which a loop is compiled
+    public static final int THRESHOLD = 1000;
+    // the most variables a compiled loop keeps, one bit each in a signature
+    private static final int MAX_VARS = 63;
+    // loops larger than this are left alone, so no branch is out of range
+    private static final int MAX_NODES = 2000;
+
+    private static final int NUM = 0;
+    private static final int BOOL = 1;
+
+    // a compiled loop. It runs on the values of its variables, stores the
+    // ones it assigned back into the array and returns -1 when the loop
+    // is done, or the exit at which the interpreter has to take over.
+    public interface Loop {
+        int run(int[] vars);
+    }
+
+    // a loop that is compiled for one combination of types
+    private static final class Compiled {
+        final Loop loop;
+        // for every exit, the statements from the loop down to the one to
+        // resume at
+        final Main.Stmt[][] exits;
+
+        Compiled(Loop loop, Main.Stmt[][] exits) {
+            this.loop = loop;
+            this.exits = exits;
+        }
+    }
+
+    // what is known about a loop: its variables and compiled code
+    private static final class Entry {
+        final Main.Identifier[] vars;
+        final boolean[] assigned;
+        final Map<Long, Compiled> compiled = new HashMap<>();
+
+        Entry(Main.Identifier[] vars, boolean[] assigned) {
+            this.vars = vars;
+            this.assigned = assigned;
+        }
+    }
+
+    // thrown while analyzing or compiling a loop that cannot be compiled
+    private static final class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    // marks loops and type combinations that cannot be compiled
+    private static final Entry UNSUPPORTED = new Entry(null, null);
+    private static final Compiled FAILED = new Compiled(null, null);
+
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private final Map<Main.WhileStmt, Entry> entries = new IdentityHashMap<>();
+
+    public Jit() { }
+
+    // runs the rest of a hot loop, whose body has just finished, in
+    // compiled code. Returns false if the loop cannot be compiled for the
+    // current types of its variables, in which case nothing has run.
+    public boolean enter(Main.WhileStmt loop) {
+        if (Main.error || Main.table.isTrace()) return false;
+        Entry entry = entries.get(loop);
+        if (entry == null) {
+            entry = analyze(loop);
+            entries.put(loop, entry);
+        }
+        if (entry == UNSUPPORTED) return false;
+
+        final Main.Identifier[] vars = entry.vars;
+        final int[] values = new int[vars.length];
+        long signature = 0;
+        for (int i = 0; i < vars.length; i++) {
+            final Main.Value val = read(vars[i]);
+            if (val.getType() == Main.Type.NUM_T) {
+                values[i] = val.getNumber();
+            } else if (val.getType() == Main.Type.BOOL_T) {
+                values[i] = val.getBoolean() ? 1 : 0;
+                signature |= 1L << i;
+            } else {
+                return false;
+            }
+        }
+        Compiled compiled = entry.compiled.get(signature);
+        if (compiled == null) {
+            compiled = compile(loop, entry, signature);
+            entry.compiled.put(signature, compiled);
+        }
+        if (compiled == FAILED) return false;
+
+        final int exit = compiled.loop.run(values);
+        for (int i = 0; i < vars.length; i++) {
+            if (entry.assigned[i]) {
+                final boolean bool = (signature & (1L << i)) != 0;
+                write(vars[i], bool ? Main.Value.of(values[i] != 0) : Main.Value.of(values[i]));
+            }
+        }
+        if (exit >= 0)
+            resume(compiled.exits[exit], 0);
+        return true;
+    }
+
+    private static Main.Value read(Main.Identifier id) {
+        if (Main.resolver != null)
+            return Main.table.load(id.getDepth(), id.getSlot(), id.getValue());
+        return Main.table.current(id.getValue());
+    }
+
+    private static void write(Main.Identifier id, Main.Value val) {
+        if (Main.resolver != null)
+            Main.table.assign(id.getDepth(), id.getSlot(), id.getValue(), val);
+        else
+            Main.table.rebing(id.getValue(), val);
+    }
+
+    // finishes running the statement at the end of the path, and all that
+    // follows it up to the end of the loop, as the interpreter would have
+    // if it had run the loop all along. A loop on the path is at its
+    // condition if the path ends with it and at the end of its body
+    // otherwise, so in both cases it continues by checking the condition.
+    private static void resume(Main.Stmt[] path, int i) {
+        final Main.Stmt stmt = path[i];
+        if (i < path.length - 1) {
+            resume(path, i + 1);
+            if (stmt instanceof Main.WhileStmt) ((Main.WhileStmt) stmt).loop();
+        } else if (stmt instanceof Main.WhileStmt) {
+            ((Main.WhileStmt) stmt).loop();
+        } else {
+            stmt.execute();
+        }
+        // the statements after the hot loop are the interpreter's
+        if (i > 0 && stmt.getNext() != null) stmt.getNext().exec();
+    }
+
+    // ===-----------------------------------------------------------------===
+    // analysis: the variables of a loop, and whether it can be compiled
+
+    private static final class Analysis {
+        final List<Main.Identifier> vars = new ArrayList<>();
+        final List<Boolean> assigned = new ArrayList<>();
+        int nodes = 0;
+
+        int var(Main.Identifier id, boolean assign) {
+            for (int i = 0; i < vars.size(); i++) {
+                if (vars.get(i).getValue().equals(id.getValue())) {
+                    if (assign) assigned.set(i, true);
+                    return i;
+                }
+            }
+            vars.add(id);
+            assigned.add(assign);
+            return vars.size() - 1;
+        }
+    }
+
+    private static Entry analyze(Main.WhileStmt loop) {
+        final Analysis analysis = new Analysis();
+        try {
+            stmt(loop, analysis);
+        } catch (Unsupported e) {
+            return UNSUPPORTED;
+        }
+        if (analysis.vars.size() > MAX_VARS || analysis.nodes > MAX_NODES)
+            return UNSUPPORTED;
+        final boolean[] assigned = new boolean[analysis.assigned.size()];
+        for (int i = 0; i < assigned.length; i++)
+            assigned[i] = analysis.assigned.get(i);
+        return new Entry(analysis.vars.toArray(new Main.Identifier[0]), assigned);
+    }
+
+    private static void stmts(Main.Stmt stmt, Analysis analysis) {
+        for (Main.Stmt s = stmt; s != null; s = s.getNext())
+            stmt(s, analysis);
+    }
+
+    private static void stmt(Main.Stmt s, Analysis analysis) {
+        analysis.nodes++;
+        if (s instanceof Main.NullStmt) {
+            return;
+        } else if (s instanceof Main.Block) {
+            // a block that declares nothing cannot be told apart from its
+            // body unless scopes are traced
+            if (((Main.Block) s).getFrameNames().length > 0) throw new Unsupported();
+            stmts(((Main.Block) s).getBody(), analysis);
+        } else if (s instanceof Main.IfStmt) {
+            final Main.IfStmt ifStmt = (Main.IfStmt) s;
+            expr(ifStmt.getCondition(), analysis);
+            stmts(ifStmt.getIfBlock(), analysis);
+            stmts(ifStmt.getElseBlock(), analysis);
+        } else if (s instanceof Main.WhileStmt) {
+            final Main.WhileStmt whileStmt = (Main.WhileStmt) s;
+            expr(whileStmt.getCondition(), analysis);
+            stmts(whileStmt.getBody(), analysis);
+        } else if (s instanceof Main.AssignStmt) {
+            final Main.AssignStmt assign = (Main.AssignStmt) s;
+            expr(assign.getRhs(), analysis);
+            analysis.var(assign.getLhs(), true);
+        } else if (s instanceof Main.Write) {
+            expr(((Main.Write) s).getValue(), analysis);
+        } else {
+            throw new Unsupported();
+        }
+    }
+
+    private static void expr(Main.Expr expr, Analysis analysis) {
+        analysis.nodes++;
+        if (expr instanceof Main.Identifier) {
+            analysis.var((Main.Identifier) expr, false);
+        } else if (expr instanceof Main.ArithmeticOp) {
+            expr(((Main.ArithmeticOp) expr).getLeft(), analysis);
+            expr(((Main.ArithmeticOp) expr).getRight(), analysis);
+        } else if (expr instanceof Main.ComparisonOp) {
+            // != yields the unset value, which no condition accepts
+            if (((Main.ComparisonOp) expr).getOp() == Main.Oper.NE) throw new Unsupported();
+            expr(((Main.ComparisonOp) expr).getLeft(), analysis);
+            expr(((Main.ComparisonOp) expr).getRight(), analysis);
+        } else if (expr instanceof Main.BooleanOp) {
+            expr(((Main.BooleanOp) expr).getLeft(), analysis);
+            expr(((Main.BooleanOp) expr).getRight(), analysis);
+        } else if (expr instanceof Main.NegationOp) {
+            expr(((Main.NegationOp) expr).getRight(), analysis);
+        } else if (expr instanceof Main.NotOp) {
+            expr(((Main.NotOp) expr).getRight(), analysis);
+        } else if (!(expr instanceof Main.Number) && !(expr instanceof Main.BoolExpr)) {
+            throw new Unsupported();
+        }
+    }
+
+    // ===-----------------------------------------------------------------===
+    // code generation for one combination of types
+
+    private Compiled compile(Main.WhileStmt loop, Entry entry, long signature) {
+        final Emitter emitter = new Emitter(entry, signature);
+        final byte[] bytes;
+        try {
+            bytes = emitter.emit(loop);
+        } catch (Unsupported | IllegalStateException e) {
+            return FAILED;
+        }
+        try {
+            final Class<?> cls = lookup.defineHiddenClass(bytes, true).lookupClass();
+            final Loop compiled = (Loop) cls.getConstructor().newInstance();
+            return new Compiled(compiled, emitter.exits.toArray(new Main.Stmt[0][]));
+        } catch (ReflectiveOperationException e) {
+            throw new Error("cannot load compiled loop", e);
+        }
+    }
+
+    private static final class Emitter {
+        // the first local holding a variable, after this and the array
+        private static final int FIRST = 2;
+
+        private final Entry entry;
+        private final long signature;
+        private final ClassFile file = new ClassFile("JitLoop", "java/lang/Object", "Jit$Loop");
+        private ClassFile.Code code;
+        // the statements from the loop down to the one being compiled
+        private final List<Main.Stmt> path = new ArrayList<>();
+        private final List<Main.Stmt[]> exits = new ArrayList<>();
+
+        Emitter(Entry entry, long signature) {
+            this.entry = entry;
+            this.signature = signature;
+        }
+
+        byte[] emit(Main.WhileStmt loop) {
+            code = file.method("<init>", "()V");
+            code.reserveLocals(1);
+            code.emit(ClassFile.ALOAD_0, 1);
+            code.emitInvoke(ClassFile.INVOKESPECIAL, file.methodRef("java/lang/Object", "<init>", "()V"), -1);
+            code.emit(ClassFile.RETURN, 0);
+            code.end();
+
+            code = file.method("run", "([I)I");
+            code.reserveLocals(FIRST + entry.vars.length);
+            for (int i = 0; i < entry.vars.length; i++) {
+                code.emit(ClassFile.ALOAD_1, 1);
+                code.emitConstant(i);
+                code.emit(ClassFile.IALOAD, -1);
+                code.emitLocal(ClassFile.ISTORE, FIRST + i, -1);
+            }
+            stmt(loop);
+            storeBack();
+            code.emitConstant(-1);
+            code.emit(ClassFile.IRETURN, -1);
+            code.end();
+            return file.toBytes();
+        }
+
+        private void storeBack() {
+            for (int i = 0; i < entry.vars.length; i++) {
+                if (entry.assigned[i]) {
+                    code.emit(ClassFile.ALOAD_1, 1);
+                    code.emitConstant(i);
+                    code.emitLocal(ClassFile.ILOAD, FIRST + i, 1);
+                    code.emit(ClassFile.IASTORE, -3);
+                }
+            }
+        }
+
+        // leaves the rest of the loop to the interpreter, from the
+        // statement being compiled. The stack is discarded by the return.
+        private void exit() {
+            exits.add(path.toArray(new Main.Stmt[0]));
+            storeBack();
+            code.emitConstant(exits.size() - 1);
+            code.emit(ClassFile.IRETURN, -1);
+        }
+
+        private int var(Main.Identifier id) {
+            for (int i = 0; i < entry.vars.length; i++)
+                if (entry.vars[i].getValue().equals(id.getValue()))
+                    return i;
+            throw new Error("variable not analyzed: " + id.getValue());
+        }
+
+        private int typeOf(int var) {
+            return (signature & (1L << var)) != 0 ? BOOL : NUM;
+        }
+
+        private void stmts(Main.Stmt stmt) {
+            for (Main.Stmt s = stmt; s != null; s = s.getNext())
+                stmt(s);
+        }
+
+        private void stmt(Main.Stmt s) {
+            path.add(s);
+            if (s instanceof Main.Block) {
+                stmts(((Main.Block) s).getBody());
+            } else if (s instanceof Main.IfStmt) {
+                final Main.IfStmt ifStmt = (Main.IfStmt) s;
+                final int elseLabel = code.newLabel();
+                branchIfFalse(ifStmt.getCondition(), elseLabel);
+                stmts(ifStmt.getIfBlock());
+                if (ifStmt.getElseBlock() != null) {
+                    final int end = code.newLabel();
+                    code.emitJump(ClassFile.GOTO, end, 0);
+                    code.place(elseLabel);
+                    stmts(ifStmt.getElseBlock());
+                    code.place(end);
+                } else {
+                    code.place(elseLabel);
+                }
+            } else if (s instanceof Main.WhileStmt) {
+                final Main.WhileStmt whileStmt = (Main.WhileStmt) s;
+                final int head = code.newLabel();
+                final int end = code.newLabel();
+                code.place(head);
+                branchIfFalse(whileStmt.getCondition(), end);
+                stmts(whileStmt.getBody());
+                code.emitJump(ClassFile.GOTO, head, 0);
+                code.place(end);
+            } else if (s instanceof Main.AssignStmt) {
+                final Main.AssignStmt assign = (Main.AssignStmt) s;
+                final int var = var(assign.getLhs());
+                // a variable keeps its type throughout compiled code
+                if (expr(assign.getRhs()) != typeOf(var)) throw new Unsupported();
+                code.emitLocal(ClassFile.ISTORE, FIRST + var, -1);
+            } else if (s instanceof Main.Write) {
+                final String method = expr(((Main.Write) s).getValue()) == NUM ? "writeNumber" : "writeBoolean";
+                code.emitInvoke(ClassFile.INVOKESTATIC, file.methodRef("Jit", method, "(I)V"), -1);
+            }
+            path.remove(path.size() - 1);
+        }
+
+        private void branchIfFalse(Main.Expr condition, int label) {
+            if (condition instanceof Main.ComparisonOp) {
+                final Main.ComparisonOp op = (Main.ComparisonOp) condition;
+                number(op.getLeft());
+                number(op.getRight());
+                final int jump = switch (op.getOp()) {
+                    case EQ -> ClassFile.IF_ICMPNE;
+                    case LT -> ClassFile.IF_ICMPGE;
+                    case GT -> ClassFile.IF_ICMPLE;
+                    case LE -> ClassFile.IF_ICMPGT;
+                    case GE -> ClassFile.IF_ICMPLT;
+                    default -> throw new Unsupported();
+                };
+                code.emitJump(jump, label, -2);
+            } else {
+                bool(condition);
+                code.emitJump(ClassFile.IFEQ, label, -1);
+            }
+        }
+
+        private void number(Main.Expr expr) {
+            if (expr(expr) != NUM) throw new Unsupported();
+        }
+
+        private void bool(Main.Expr expr) {
+            if (expr(expr) != BOOL) throw new Unsupported();
+        }
+
+        // emits an expression and returns the type of its value.
+        private int expr(Main.Expr expr) {
+            if (expr instanceof Main.Identifier) {
+                final int var = var((Main.Identifier) expr);
+                code.emitLocal(ClassFile.ILOAD, FIRST + var, 1);
+                return typeOf(var);
+            } else if (expr instanceof Main.Number) {
+                code.emitConstant(((Main.Number) expr).getValue());
+                return NUM;
+            } else if (expr instanceof Main.BoolExpr) {
+                code.emitConstant(((Main.BoolExpr) expr).getValue() ? 1 : 0);
+                return BOOL;
+            } else if (expr instanceof Main.ArithmeticOp) {
+                arithmetic((Main.ArithmeticOp) expr);
+                return NUM;
+            } else if (expr instanceof Main.ComparisonOp) {
+                final int isTrue = code.newLabel();
+                final int end = code.newLabel();
+                branchIfFalse(expr, isTrue);
+                // the jump is taken when the comparison is false
+                code.emitConstant(1);
+                code.emitJump(ClassFile.GOTO, end, 0);
+                code.adjust(-1);
+                code.place(isTrue);
+                code.emitConstant(0);
+                code.place(end);
+                return BOOL;
+            } else if (expr instanceof Main.BooleanOp) {
+                final Main.BooleanOp op = (Main.BooleanOp) expr;
+                // both operands are always evaluated
+                bool(op.getLeft());
+                bool(op.getRight());
+                code.emit(op.getOp() == Main.Oper.AND ? ClassFile.IAND : ClassFile.IOR, -1);
+                return BOOL;
+            } else if (expr instanceof Main.NegationOp) {
+                number(((Main.NegationOp) expr).getRight());
+                code.emit(ClassFile.INEG, 0);
+                return NUM;
+            } else if (expr instanceof Main.NotOp) {
+                bool(((Main.NotOp) expr).getRight());
+                code.emitConstant(1);
+                code.emit(ClassFile.IXOR, -1);
+                return BOOL;
+            }
+            throw new Unsupported();
+        }
+
+        private void arithmetic(Main.ArithmeticOp op) {
+            number(op.getLeft());
+            number(op.getRight());
+            switch (op.getOp()) {
+                case ADD -> code.emit(ClassFile.IADD, -1);
+                case SUB -> code.emit(ClassFile.ISUB, -1);
+                case MUL -> code.emit(ClassFile.IMUL, -1);
+                case DIV -> {
+                    if (!(op.getRight() instanceof Main.Number) || ((Main.Number) op.getRight()).getValue() == 0) {
+                        final int divide = code.newLabel();
+                        code.emit(ClassFile.DUP, 1);
+                        code.emitJump(ClassFile.IFNE, divide, -1);
+                        exit();
+                        code.place(divide);
+                    }
+                    code.emit(ClassFile.IDIV, -1);
+                }
+                default -> throw new Unsupported();
+            }
+        }
+    }
+
+    // ===-----------------------------------------------------------------===
+    // called by compiled code
+
+    public static void writeNumber(int n) {
+        Main.out.println(n);
+    }
+
+    public static void writeBoolean(int b) {
+        Main.Value.of(b != 0).writeTo();
+    }
+}
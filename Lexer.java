@@ -1,3 +1,10 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -42,29 +49,121 @@ public class Lexer {
     // represent end of file char
     private static final char EOF = (char) -1;
     // represent EOF token type
-    private static final int EOF_TYPE = 1;
-    // input string
-    private final String input;
+    public static final int EOF_TYPE = 1;
+    // input characters, when all of them are available
+    private final CharSequence input;
+    // otherwise, the characters are read from here through a buffer
+    private final Reader reader;
+    private final char[] buffer;
+    private int position = 0;
+    private int limit = 0;
     // index into input of current character
     private int p = 0;
     // current character
     private char c;
+    // the position of the current character, and of the token being read
+    private int line = 1;
+    private int column = 1;
+    private int tokenLine;
+    private int tokenColumn;
 
     public Lexer(String input) {
+        this((CharSequence) input);
+    }
+
+    // the input may be a String, a CharBuffer or any other sequence; it is
+    // only read one character at a time.
+    public Lexer(CharSequence input) {
         this.input = input;
-        c = input.charAt(p); // prime lookahead
+        this.reader = null;
+        this.buffer = null;
+        c = read(); // prime lookahead
+    }
+
+    // reads the input through a fixed size buffer, so only a window of
+    // it is ever held in memory.
+    public Lexer(Reader reader) {
+        this.input = null;
+        this.reader = reader;
+        this.buffer = new char[8192];
+        c = read(); // prime lookahead
+    }
+
+    // maps the file into memory and reads it as ASCII text. The mapping is
+    // not copied onto the heap, however large the file is; it must be
+    // smaller than 2GB.
+    public static Lexer mapped(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new Lexer(new AsciiSequence(bytes));
+        }
+    }
+
+    // a view of a buffer of single byte characters.
+    private static final class AsciiSequence implements CharSequence {
+        private final ByteBuffer bytes;
+
+        AsciiSequence(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int length() {
+            return bytes.limit();
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes.get(index) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new AsciiSequence(bytes.slice(start, end - start));
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder(length());
+            for (int i = 0; i < length(); i++) sb.append(charAt(i));
+            return sb.toString();
+        }
+    }
+
+    // returns the character at p, or EOF past the end of the input.
+    private char read() {
+        if (input != null)
+            return p < input.length() ? input.charAt(p) : EOF;
+        if (position == limit) {
+            try {
+                limit = reader.read(buffer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return EOF;
+            }
+        }
+        return buffer[position++];
     }
 
     // returns true if the current character is EOF
     public boolean isEOF() {
-        return p >= input.length();
+        return c == EOF;
     }
 
     // move one character; detect "end of file"
     public void consume() {
+        if (c == '\n') {
+            line++;
+            column = 1;
+        } else {
+            column++;
+        }
         p++;
-        if (p >= input.length()) c = EOF;
-        else c = input.charAt(p);
+        c = read();
     }
 
     // ensure x is next character on the input stream.
@@ -79,15 +178,22 @@ public class Lexer {
 
     boolean isDIGIT() { return c >= '0' && c <= '9'; }
 
+    // returns all tokens of the input; the last one is always <EOF>.
     public List<Token> getTokens() {
+        final Events.Lex event = Events.lex();
         List<Token> tokenList = new ArrayList<>();
         while (!isEOF())
             tokenList.add(nextToken());
+        if (tokenList.isEmpty() || tokenList.get(tokenList.size() - 1).type != EOF_TYPE)
+            tokenList.add(new Token(EOF_TYPE, "<EOF>"));
+        Events.lexed(event, tokenList.size());
         return tokenList;
     }
 
     public Token nextToken() {
         while (c != EOF) {
+            tokenLine = line;
+            tokenColumn = column;
             switch (c) {
                 case ' ':
                 case '\t':
@@ -97,69 +203,76 @@ public class Lexer {
                     continue;
                 case ';':
                     consume();
-                    return new Token(SEMI, ";");
+                    return token(SEMI, ";");
                 case '{':
                     consume();
-                    return new Token(LC, "{");
+                    return token(LC, "{");
                 case '}':
                     consume();
-                    return new Token(RC, "}");
+                    return token(RC, "}");
                 case '(':
                     consume();
-                    return new Token(LP, "(");
+                    return token(LP, "(");
                 case ')':
                     consume();
-                    return new Token(RP, ")");
+                    return token(RP, ")");
                 case '=':
                     consume();
-                    return new Token(EQ, "=");
+                    return token(EQ, "=");
                 case '!':
                     consume();
                     if (c == '=') {
                         consume();
-                        return new Token(NE, "!=");
+                        return token(NE, "!=");
                     }
                 case '<':
                     consume();
                     if (c == '=') {
                         consume();
-                        return new Token(LE, "<=");
+                        return token(LE, "<=");
                     }
-                    return new Token(LT, "<");
+                    return token(LT, "<");
                 case '>':
                     consume();
                     if (c == '=') {
                         consume();
-                        return new Token(GE, ">=");
+                        return token(GE, ">=");
                     }
-                    return new Token(GT, ">");
+                    return token(GT, ">");
                 case '@':
                     consume();
-                    return new Token(FUNARG, "@");
+                    return token(FUNARG, "@");
                 case ':':
                     consume();
                     if (c != '=') throw new Error("expecting =, found " + c);
                     consume();
-                    return new Token(ASN, ":=");
+                    return token(ASN, ":=");
                 case '+':
                     consume();
-                    return new Token(ADD, "+");
+                    return token(ADD, "+");
                 case '-':
                     consume();
-                    return new Token(SUB, "-");
+                    return token(SUB, "-");
                 case '*':
                     consume();
-                    return new Token(MUL, "*");
+                    return token(MUL, "*");
                 case '/':
                     consume();
-                    return new Token(DIV, "/");
+                    return token(DIV, "/");
                 default:
                     if (isLETTER()) return NAME();
                     else if (isDIGIT()) return NUMBER();
                     throw new Error("invalid character: " + c);
             }
         }
-        return new Token(EOF_TYPE, "<EOF>");
+        tokenLine = line;
+        tokenColumn = column;
+        return token(EOF_TYPE, "<EOF>");
+    }
+
+    // a token that starts where the current one began.
+    private Token token(int type, String text) {
+        return new Token(type, text, tokenLine, tokenColumn);
     }
 
     // NAME is sequence of >=1 letter
@@ -171,19 +284,19 @@ public class Lexer {
         } while (isLETTER());
         final String str = buf.toString();
         return switch (str) {
-            case "true", "false" -> new Token(BOOL, str);
-            case "read" -> new Token(READ, str);
-            case "write" -> new Token(WRITE, str);
-            case "while" -> new Token(WHILE, str);
-            case "if" -> new Token(IF, str);
-            case "ifelse" -> new Token(IF_ELSE, str);
-            case "lambda" -> new Token(LAMBDA, str);
-            case "and" -> new Token(AND, str);
-            case "or" -> new Token(OR, str);
-            case "not" -> new Token(NOT, str);
-            case "auto" -> new Token(AUTO, str);
-            case "ret" -> new Token(RETURN, str);
-            default -> new Token(IDENT, str);
+            case "true", "false" -> token(BOOL, str);
+            case "read" -> token(READ, str);
+            case "write" -> token(WRITE, str);
+            case "while" -> token(WHILE, str);
+            case "if" -> token(IF, str);
+            case "ifelse" -> token(IF_ELSE, str);
+            case "lambda" -> token(LAMBDA, str);
+            case "and" -> token(AND, str);
+            case "or" -> token(OR, str);
+            case "not" -> token(NOT, str);
+            case "auto" -> token(AUTO, str);
+            case "ret" -> token(RETURN, str);
+            default -> token(IDENT, str);
         };
     }
 
@@ -194,7 +307,7 @@ public class Lexer {
             buf.append(c);
             consume();
         } while (isDIGIT());
-        return new Token(NUMBER, buf.toString());
+        return token(NUMBER, buf.toString());
     }
 
     // ignore any whitespace
@@ -6,17 +6,20 @@ a language
 * Output: any write statement given
 */
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
+import java.util.function.Supplier;
 
 import javax.security.auth.Subject;
 
@@ -28,6 +31,36 @@ public class Main {
     // this global variable indicates if a variable/value is returned
     // by a lambda function.
     public static Stack<Value> returnVariables = new Stack<>();
+    // when set, statements are compiled and run by this VM instead of
+    // being interpreted by exec().
+    public static VM vm = null;
+    // when set, variables are resolved to frame slots by this Resolver
+    // and Blocks and Calls allocate Frames instead of using the map.
+    public static Resolver resolver = null;
+    // when set, lambdas are lexically scoped closures: a lambda value
+    // captures the variables it uses from where it was created, and a
+    // call does not see the variables of its caller. Requires a resolver.
+    public static boolean closures = false;
+    // finds the calls in tail position, which are made without recursing
+    public static final TailCalls tailCalls = new TailCalls();
+    // when set, statements are compiled by the ClosureCompiler and run
+    // as Java lambdas instead of being interpreted by exec().
+    public static boolean closureCompile = false;
+    // when set, hot loops run by exec() are compiled by this Jit.
+    public static Jit jit = null;
+    // when set, statements are optimized before they run.
+    public static boolean optimize = false;
+    // when set, statements and lambdas run by exec() are measured by this
+    // Profiler.
+    public static Profiler profiler = null;
+    // when set, the calls of pure lambdas are remembered by their Memo.
+    public static boolean memoize = false;
+    // false when running a script, which suppresses the prompts.
+    public static boolean interactive = true;
+    // where everything printed on standard output goes
+    public static Output out = Output.stdout();
+    // where the REPL and read expressions take their input from
+    public static Input in = Input.stdin();
 
     // ===-----------------------------------------------------------------===
     // the AST clas is the super-class for abstract syntax trees.
@@ -35,6 +68,10 @@ public class Main {
     public static abstract class AST {
         protected String label = "EMPTY";
         protected LinkedList<AST> children = new LinkedList<>();
+        // where the node starts in the source, as set by the Parser; 0 if
+        // it was made some other way
+        protected int line = 0;
+        protected int column = 0;
 
         public AST() { }
 
@@ -42,11 +79,31 @@ public class Main {
             return label;
         }
 
+        public void setPosition(final int line, final int column) {
+            this.line = line;
+            this.column = column;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        public int getColumn() {
+            return column;
+        }
+
         public List<AST> getChildren() {
             return Collections.unmodifiableList(children);
         }
 
         public abstract void addChild(AST child);
+
+        // puts a new child in the place of an old one, so that the
+        // children stay in sync with the fields when a node is rewritten.
+        protected void replaceChild(AST old, AST child) {
+            final int i = children.indexOf(old);
+            if (i >= 0) children.set(i, child);
+        }
     }
 
     // ===-----------------------------------------------------------------===
@@ -56,10 +113,21 @@ public class Main {
     public static class Expr extends AST {
         protected Value eval() {
             if (!error) {
-                System.err.println("eval() not yet implemented for " + this.getClass().getSimpleName());
+                out.error("eval() not yet implemented for " + this.getClass().getSimpleName());
                 error = true;
             }
-            return new Value();
+            return Value.UNSET;
+        }
+
+        // these evaluate an expression whose result must be a number or
+        // a boolean; nodes that compute one override them so that no
+        // intermediate Value is created.
+        protected int evalNumber() {
+            return eval().getNumber();
+        }
+
+        protected boolean evalBoolean() {
+            return eval().getBoolean();
         }
 
         @Override
@@ -72,12 +140,29 @@ public class Main {
     // an identifier such as the name of a variable or function.
     public static class Identifier extends Expr {
         protected String value;
+        // the lexical address assigned by the Resolver; a negative depth
+        // means the name is looked up dynamically.
+        protected int depth = -1;
+        protected int slot = -1;
 
         public Identifier(final String value) {
             this.value = value;
             this.label = "Identifier `" + value + "`";
         }
 
+        public void setAddress(final int depth, final int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
         public void setValue(final String value) {
             this.value = value;
         }
@@ -91,10 +176,12 @@ public class Main {
             
             if (!error) {
                 // CODE HERE
+                if (resolver != null)
+                    return table.load(depth, slot, value);
                 Value result = table.lookup(getValue());
                 return result;
             }   else {
-            return new Value();
+            return Value.UNSET;
             }
         }
     }
@@ -103,15 +190,26 @@ public class Main {
     // a literal number in the program.
     public static class Number extends Expr {
         protected int value;
+        private final Value constant;
 
         public Number(final int value) {
             this.value = value;
+            this.constant = Value.of(value);
             this.label = "Number `" + value + "`";
         }
 
+        public int getValue() {
+            return value;
+        }
+
         @Override
         protected Value eval() {
-            return new Value(value);
+            return constant;
+        }
+
+        @Override
+        protected int evalNumber() {
+            return value;
         }
     }
 
@@ -125,15 +223,24 @@ public class Main {
             this.label = "Boolean `" + value + "`";
         }
 
+        public boolean getValue() {
+            return value;
+        }
+
         @Override
         protected Value eval() {
             // CODE HERE
             if (value == true) 
-            return new Value(true);
+            return Value.of(true);
             else if (value == false)
-            return new Value(false);
+            return Value.of(false);
             
-            return new Value();
+            return Value.UNSET;
+        }
+
+        @Override
+        protected boolean evalBoolean() {
+            return value;
         }
     }
 
@@ -144,12 +251,16 @@ public class Main {
     }
 
     // a binary operation for arithmetic operations such as +, -, *, or /.
-    public static class ArithmeticOp extends Expr {
+    // Each operator is its own subclass, made by of(), which computes
+    // its result directly rather than switching on the operator. The
+    // operands of arithmetic are always numbers, so every node only
+    // needs the int variant of its operation.
+    public abstract static class ArithmeticOp extends Expr {
         private final Oper op;
-        private final Expr left;
-        private final Expr right;
+        protected final Expr left;
+        protected final Expr right;
 
-        public ArithmeticOp(Expr left, Expr right, Oper op) {
+        protected ArithmeticOp(Expr left, Expr right, Oper op) {
             this.op = op;
             this.left = left;
             this.right = right;
@@ -158,37 +269,113 @@ public class Main {
             addChild(right);
         }
 
+        public static ArithmeticOp of(Expr left, Expr right, Oper op) {
+            return switch (op) {
+                case ADD -> new Add(left, right);
+                case SUB -> new Sub(left, right);
+                case MUL -> new Mul(left, right);
+                case DIV -> new Div(left, right);
+                default -> throw new IllegalArgumentException("not an arithmetic operator: " + op);
+            };
+        }
+
+        public Oper getOp() {
+            return op;
+        }
+
+        public Expr getLeft() {
+            return left;
+        }
+
+        public Expr getRight() {
+            return right;
+        }
+
         @Override
         protected Value eval() {
-            final int l = left.eval().getNumber();
-            final int r = right.eval().getNumber();
-            switch (op) {
-                case ADD:
-                    return new Value(l + r);
-                case SUB:
-                    return new Value(l - r);
-                case MUL:
-                    return new Value(l * r);
-                case DIV: {
-                    if (r != 0) return new Value(l / r);
-                    else if (!error) {
-                        System.err.println("ERROR: Division by zero!");
-                        error = true;
-                    }
+            return Value.of(evalNumber());
+        }
+
+        private static final class Add extends ArithmeticOp {
+            Add(Expr left, Expr right) {
+                super(left, right, Oper.ADD);
+            }
+
+            @Override
+            protected int evalNumber() {
+                return left.evalNumber() + right.evalNumber();
+            }
+        }
+
+        private static final class Sub extends ArithmeticOp {
+            Sub(Expr left, Expr right) {
+                super(left, right, Oper.SUB);
+            }
+
+            @Override
+            protected int evalNumber() {
+                return left.evalNumber() - right.evalNumber();
+            }
+        }
+
+        private static final class Mul extends ArithmeticOp {
+            Mul(Expr left, Expr right) {
+                super(left, right, Oper.MUL);
+            }
+
+            @Override
+            protected int evalNumber() {
+                return left.evalNumber() * right.evalNumber();
+            }
+        }
+
+        private static final class Div extends ArithmeticOp {
+            Div(Expr left, Expr right) {
+                super(left, right, Oper.DIV);
+            }
+
+            @Override
+            protected Value eval() {
+                final int l = left.evalNumber();
+                final int r = right.evalNumber();
+                if (r == 0) {
+                    divisionByZero();
+                    return Value.UNSET;
+                }
+                return Value.of(l / r);
+            }
+
+            @Override
+            protected int evalNumber() {
+                final int l = left.evalNumber();
+                final int r = right.evalNumber();
+                if (r == 0) {
+                    divisionByZero();
+                    // the unset result is not a number, just as in eval()
+                    return Value.UNSET.getNumber();
                 }
+                return l / r;
+            }
+        }
+
+        static void divisionByZero() {
+            if (!error) {
+                out.error("ERROR: Division by zero!");
+                error = true;
             }
-            return new Value();
         }
     }
 
     // ===-----------------------------------------------------------------===
-    // a binary operator for comparison such as < or !=.
-    public static class ComparisonOp extends Expr {
+    // a binary operator for comparison such as < or !=. Like arithmetic,
+    // each operator is a subclass made by of(); comparisons take numbers
+    // and yield booleans.
+    public abstract static class ComparisonOp extends Expr {
         private final Oper op;
-        private final Expr left;
-        private final Expr right;
+        protected final Expr left;
+        protected final Expr right;
 
-        public ComparisonOp(Expr left, Expr right, Oper op) {
+        protected ComparisonOp(Expr left, Expr right, Oper op) {
             this.left = left;
             this.right = right;
             this.op = op;
@@ -197,35 +384,119 @@ public class Main {
             addChild(right);
         }
 
+        public static ComparisonOp of(Expr left, Expr right, Oper op) {
+            return switch (op) {
+                case EQ -> new Eq(left, right);
+                case LT -> new Lt(left, right);
+                case GT -> new Gt(left, right);
+                case LE -> new Le(left, right);
+                case GE -> new Ge(left, right);
+                case NE -> new Ne(left, right);
+                default -> throw new IllegalArgumentException("not a comparison operator: " + op);
+            };
+        }
+
+        public Oper getOp() {
+            return op;
+        }
+
+        public Expr getLeft() {
+            return left;
+        }
+
+        public Expr getRight() {
+            return right;
+        }
+
         @Override
         protected Value eval() {
-            final int l = left.eval().getNumber();
-            final int r = right.eval().getNumber();
-            // CODE HERE
-            switch(op) {
-                case EQ:
-                    return new Value(l == r);
-                case GE:
-                    return new Value(l >= r);
-                case LE:
-                    return new Value(l <= r);
-                case GT:
-                    return new Value(l > r);
-                case LT:
-                    return new Value(l < r);
+            return Value.of(evalBoolean());
+        }
+
+        private static final class Eq extends ComparisonOp {
+            Eq(Expr left, Expr right) {
+                super(left, right, Oper.EQ);
+            }
+
+            @Override
+            protected boolean evalBoolean() {
+                return left.evalNumber() == right.evalNumber();
+            }
+        }
+
+        private static final class Lt extends ComparisonOp {
+            Lt(Expr left, Expr right) {
+                super(left, right, Oper.LT);
+            }
+
+            @Override
+            protected boolean evalBoolean() {
+                return left.evalNumber() < right.evalNumber();
+            }
+        }
+
+        private static final class Gt extends ComparisonOp {
+            Gt(Expr left, Expr right) {
+                super(left, right, Oper.GT);
+            }
+
+            @Override
+            protected boolean evalBoolean() {
+                return left.evalNumber() > right.evalNumber();
+            }
+        }
+
+        private static final class Le extends ComparisonOp {
+            Le(Expr left, Expr right) {
+                super(left, right, Oper.LE);
+            }
+
+            @Override
+            protected boolean evalBoolean() {
+                return left.evalNumber() <= right.evalNumber();
+            }
+        }
+
+        private static final class Ge extends ComparisonOp {
+            Ge(Expr left, Expr right) {
+                super(left, right, Oper.GE);
+            }
+
+            @Override
+            protected boolean evalBoolean() {
+                return left.evalNumber() >= right.evalNumber();
+            }
+        }
+
+        // != has no case and yields the unset value
+        private static final class Ne extends ComparisonOp {
+            Ne(Expr left, Expr right) {
+                super(left, right, Oper.NE);
+            }
+
+            @Override
+            protected Value eval() {
+                left.evalNumber();
+                right.evalNumber();
+                return Value.UNSET;
+            }
+
+            @Override
+            protected boolean evalBoolean() {
+                return eval().getBoolean();
             }
-            return new Value();
         }
     }
 
     // ===-----------------------------------------------------------------===
-    // a binary operation for boolean logic such as and, or.
-    public static class BooleanOp extends Expr {
+    // a binary operation for boolean logic such as and, or, with a
+    // subclass per operator made by of().
+    public abstract static class BooleanOp extends Expr {
         private final Oper op;
-        private final Expr left;
-        private final Expr right;
+        protected final Expr left;
+        protected final Expr right;
 
-        public BooleanOp(Expr left, Expr right, Oper op) {
+        protected BooleanOp(Expr left, Expr right, Oper op) {
             this.left = left;
             this.right = right;
             this.op = op;
@@ -234,19 +505,54 @@ public class Main {
             addChild(right);
         }
 
+        public static BooleanOp of(Expr left, Expr right, Oper op) {
+            return switch (op) {
+                case AND -> new And(left, right);
+                case OR -> new Or(left, right);
+                default -> throw new IllegalArgumentException("not a boolean operator: " + op);
+            };
+        }
+
+        public Oper getOp() {
+            return op;
+        }
+
+        public Expr getLeft() {
+            return left;
+        }
+
+        public Expr getRight() {
+            return right;
+        }
+
         @Override
         protected Value eval() {
-            // TODO: students need to complete this
-            final boolean l = left.eval().getBoolean();
-            final boolean r = right.eval().getBoolean();
-            // CODE HERE
-            switch(op) {
-                case AND:
-                    return new Value(l && r);
-                case OR:
-                    return new Value(l || r);
+            return Value.of(evalBoolean());
+        }
+
+        // both operands are always evaluated
+        private static final class And extends BooleanOp {
+            And(Expr left, Expr right) {
+                super(left, right, Oper.AND);
+            }
+
+            @Override
+            protected boolean evalBoolean() {
+                final boolean l = left.evalBoolean();
+                return right.evalBoolean() && l;
+            }
+        }
+
+        private static final class Or extends BooleanOp {
+            Or(Expr left, Expr right) {
+                super(left, right, Oper.OR);
+            }
+
+            @Override
+            protected boolean evalBoolean() {
+                final boolean l = left.evalBoolean();
+                return right.evalBoolean() || l;
             }
-            return new Value();
         }
     }
 
@@ -261,11 +567,18 @@ public class Main {
             addChild(right);
         }
 
+        public Expr getRight() {
+            return right;
+        }
+
         @Override
         protected Value eval() {
+            return Value.of(evalNumber());
+        }
 
-            final int r = right.eval().getNumber();
-            return new Value(-1 * r);
+        @Override
+        protected int evalNumber() {
+            return -1 * right.evalNumber();
         }
     }
 
@@ -280,11 +593,18 @@ public class Main {
             addChild(right);
         }
 
+        public Expr getRight() {
+            return right;
+        }
+
         @Override
         protected Value eval() {
+            return Value.of(evalBoolean());
+        }
 
-            final boolean r = right.eval().getBoolean();
-            return new Value(!r);
+        @Override
+        protected boolean evalBoolean() {
+            return !right.evalBoolean();
         }
     }
 
@@ -297,14 +617,11 @@ public class Main {
 
         @Override
         protected Value eval() {
-            System.out.print("read> ");
-            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
-            try {
-                final String val = reader.readLine();
-                return new Value(Integer.parseInt(val));
-            } catch (Exception ignored) {
-            }
-            return new Value();
+            if (interactive)
+                out.print("read> ");
+            out.flush();
+            final long val = in.nextInt();
+            return val == Input.NONE ? Value.UNSET : Value.of((int) val);
         }
     }
 
@@ -312,6 +629,9 @@ public class Main {
     // a return expression.
     public static class ReturnExpr extends Expr {
         private final Expr value;
+        // set by TailCalls when this is the last thing a lambda body does
+        // and its value is a call.
+        private boolean tail = false;
 
         public ReturnExpr(Expr value) {
             this.value = value;
@@ -319,15 +639,29 @@ public class Main {
             addChild(value);
         }
 
+        public Expr getValue() {
+            return value;
+        }
+
+        public void setTail(final boolean tail) {
+            this.tail = tail;
+        }
+
+        public boolean isTail() {
+            return tail;
+        }
+
         @Override
         protected Value eval() {
-            // TODO: students need to complete this
-            final int l = value.eval().getNumber();
+            // a call in tail position is left to the enclosing call, which
+            // then returns its value for this one.
+            if (tail && ((Call) value).tailCall())
+                return Value.UNSET;
+            final Value val = value.eval();
             if (!error) {
-                // CODE HERE
-                Main.returnVariables.push(value.eval());
+                Main.returnVariables.push(val);
             }
-            return new Value();
+            return Value.UNSET;
         }
     }
 
@@ -339,7 +673,7 @@ public class Main {
         private Stmt next;
 
         public Stmt() {
-            next = new NullStmt();
+            next = NullStmt.END;
             children.add(next);
         }
 
@@ -348,19 +682,6 @@ public class Main {
             this.next = next;
         }
 
-        // this method is for building sequences of statements by the
-        // parser. It takes two statements and appends one at the end
-        // of the other. The returned value is a reference to the new
-        // statement representing the sequence.
-        public static Stmt append(Stmt a, Stmt b) {
-            if (!a.hasNext()) return b;
-            Stmt last = a;
-            while (last.getNext().hasNext())
-                last = last.getNext();
-            last.setNext(b);
-            return a;
-        }
-
         public Stmt getNext() {
             return next;
         }
@@ -375,9 +696,19 @@ public class Main {
             return next != null;
         }
 
-        public void exec() {
+        // executes this statement and the ones that follow it. The
+        // sequence is walked in a loop, and nested sequences such as the
+        // body of a Block come back here, so the Java stack only grows
+        // with the nesting of the program and not with its length.
+        public final void exec() {
+            for (Stmt stmt = this; stmt != null; stmt = stmt.next)
+                stmt.execute();
+        }
+
+        // executes just this statement.
+        protected void execute() {
             if (!error) {
-                System.err.println("exec() not yet implemented for " + this.getClass().getSimpleName());
+                out.error("exec() not yet implemented for " + this.getClass().getSimpleName());
                 error = true;
             }
         }
@@ -392,6 +723,10 @@ public class Main {
     // ===-----------------------------------------------------------------===
     // this class is necessary to terminate a sequence of statements.
     public static class NullStmt extends Stmt {
+        // the terminator shared by all sequences; it has no next
+        // statement and no children, so it is never modified.
+        public static final NullStmt END = new NullStmt();
+
         public NullStmt() {
             super(null);
             this.label = "NullStmt `null`";
@@ -399,7 +734,7 @@ public class Main {
 
         // nothing to execute!
         @Override
-        public void exec() { }
+        protected void execute() { }
     }
 
     // ===-----------------------------------------------------------------===
@@ -407,6 +742,9 @@ public class Main {
     // in curly braces { and }. This is where scopes will begin and end.
     public static class Block extends Stmt {
         private Stmt body;
+        // the names of the variables declared directly in this block, in
+        // slot order; assigned by the Resolver.
+        private String[] frameNames = new String[0];
 
         public Block(Stmt body) {
             this.body = body;
@@ -414,7 +752,16 @@ public class Main {
             addChild(body);
         }
 
+        public void setFrameNames(String[] frameNames) {
+            this.frameNames = frameNames;
+        }
+
+        public String[] getFrameNames() {
+            return frameNames;
+        }
+
         public void setBody(Stmt body) {
+            replaceChild(this.body, body);
             this.body = body;
         }
 
@@ -423,13 +770,18 @@ public class Main {
         }
 
         @Override
-        public void exec() {
+        protected void execute() {
             // TODO: students need to complete this
             // CODE HERE
-            table.openScope();
-            body.exec();
-            table.closeScope();
-            getNext().exec();                 
+            if (resolver != null) {
+                table.enterFrame(frameNames);
+                body.exec();
+                table.exitFrame(frameNames);
+            } else {
+                table.openScope();
+                body.exec();
+                table.closeScope();
+            }
         }
     }
 
@@ -451,18 +803,23 @@ public class Main {
             if (elseBlock != null)
                 addChild(elseBlock);
             else
-                addChild(new NullStmt());
+                addChild(NullStmt.END);
         }
 
         public void setCondition(Expr condition) {
+            replaceChild(this.condition, condition);
             this.condition = condition;
         }
 
         public void setIfBlock(Stmt ifBlock) {
+            replaceChild(this.ifBlock, ifBlock);
             this.ifBlock = ifBlock;
         }
 
         public void setElseBlock(Stmt elseBlock) {
+            // a missing else block is shown as a NullStmt
+            replaceChild(this.elseBlock != null ? this.elseBlock : NullStmt.END,
+                    elseBlock != null ? elseBlock : NullStmt.END);
             this.elseBlock = elseBlock;
         }
 
@@ -479,11 +836,11 @@ public class Main {
         }
 
         @Override
-        public void exec() {
+        protected void execute() {
             // TODO: students need to complete this
             if (!error) {
                 // CODE HERE
-                if (condition.eval().getBoolean()) {
+                if (condition.evalBoolean()) {
  
                     ifBlock.exec();
                     
@@ -496,7 +853,6 @@ public class Main {
 
                 }
             }
-            getNext().exec();
         }
     }
 
@@ -505,6 +861,8 @@ public class Main {
     public static class WhileStmt extends Stmt {
         private Expr condition;
         private Stmt body;
+        // the times the body ran, until the loop is handed to the Jit
+        private int backEdges = 0;
 
         public WhileStmt(Expr condition, Stmt body) {
             this.condition = condition;
@@ -516,10 +874,12 @@ public class Main {
         }
 
         public void setCondition(Expr condition) {
+            replaceChild(this.condition, condition);
             this.condition = condition;
         }
 
         public void setBody(Stmt body) {
+            replaceChild(this.body, body);
             this.body = body;
         }
 
@@ -532,17 +892,24 @@ public class Main {
         }
 
         @Override
-        public void exec() {
+        protected void execute() {
             // TODO: students need to complete this
             if (!error) {
                 // CODE HERE
-                
-                while (condition.eval().getBoolean()) {
-                    body.exec();
+                loop();
+            }
+        }
+
+        // runs the loop from its condition on. Once the loop is hot, the
+        // Jit takes over at the end of the body if it can.
+        void loop() {
+            while (condition.evalBoolean()) {
+                body.exec();
+                if (jit != null && ++backEdges >= Jit.THRESHOLD) {
+                    if (jit.enter(this)) return;
+                    backEdges = 0;
                 }
-                
             }
-            getNext().exec();
         }
     }
 
@@ -566,6 +933,7 @@ public class Main {
         }
 
         public void setRhs(Expr rhs) {
+            replaceChild(this.rhs, rhs);
             this.rhs = rhs;
         }
 
@@ -578,11 +946,13 @@ public class Main {
         }
 
         @Override
-        public void exec() {
+        protected void execute() {
             if (!error) {
-                table.bind(lhs.getValue(), rhs.eval());
+                if (resolver != null)
+                    table.define(lhs.getSlot(), lhs.getValue(), rhs.eval());
+                else
+                    table.bind(lhs.getValue(), rhs.eval());
             }
-            getNext().exec();
         }
     }
 
@@ -606,6 +976,7 @@ public class Main {
         }
 
         public void setRhs(Expr rhs) {
+            replaceChild(this.rhs, rhs);
             this.rhs = rhs;
         }
 
@@ -618,24 +989,26 @@ public class Main {
         }
 
         @Override
-        public void exec() {
+        protected void execute() {
             // TODO: complete by implementation
             if (!error) {
                 // CODE HERE
                 
+                if (resolver != null)
+                    table.assign(lhs.getDepth(), lhs.getSlot(), lhs.getValue(), rhs.eval());
+                else
                     table.rebing(lhs.getValue(), rhs.eval());
                 
-                // System.out.println("INFO: replacing the value `" + val + "` in `" + lhs.getValue() + "`");
+                // out.println("INFO: replacing the value `" + val + "` in `" + lhs.getValue() + "`");
 
             }
-            getNext().exec();
         }
     }
 
     // ===-----------------------------------------------------------------===
     // this is a write statement.
     public static class Write extends Stmt {
-        private final Expr value;
+        private Expr value;
 
         public Write(Expr value) {
             this.value = value;
@@ -643,19 +1016,27 @@ public class Main {
             addChild(value);
         }
 
+        public void setValue(Expr value) {
+            replaceChild(this.value, value);
+            this.value = value;
+        }
+
+        public Expr getValue() {
+            return value;
+        }
+
         @Override
-        public void exec() {
+        protected void execute() {
             Value val = value.eval();
             if (!error)
                 val.writeTo();
-            getNext().exec();
         }
     }
 
     // ===-----------------------------------------------------------------===
     // an expression statement that consists of a single expression.
     public static class ExprStmt extends Stmt {
-        private final Expr value;
+        private Expr value;
 
         public ExprStmt(Expr value) {
             this.value = value;
@@ -663,11 +1044,19 @@ public class Main {
             addChild(value);
         }
 
+        public void setValue(Expr value) {
+            replaceChild(this.value, value);
+            this.value = value;
+        }
+
+        public Expr getValue() {
+            return value;
+        }
+
         @Override
-        public void exec() {
+        protected void execute() {
             if (!error)
                 value.eval();
-            getNext().exec();
         }
     }
 
@@ -675,7 +1064,21 @@ public class Main {
     // a lambda expression consists of a parameter name and a body.
     public static class Lambda extends Expr {
         private final Identifier variable;
-        private final Stmt body;
+        private Stmt body;
+        // the variable the lambda is bound to where it is written, if any
+        private String name;
+        // the frame layout of a call: just the parameter
+        private String[] frameNames;
+        // the function value; every evaluation of this lambda shares it
+        private Value value;
+        // the body compiled by the ClosureCompiler, if it is in use
+        private Runnable code;
+        // what calls returned, if the lambda is pure and memoized
+        private Memo memo;
+        // the addresses of the variables a closure captures, as seen from
+        // where it is created
+        private int[] captureDepths = new int[0];
+        private int[] captureSlots = new int[0];
 
         public Lambda(Identifier variable, Stmt body) {
             this.variable = variable;
@@ -689,19 +1092,86 @@ public class Main {
             return variable.getValue();
         }
 
+        public Identifier getParameter() {
+            return variable;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // the name of the lambda, if it was bound to one, and where it is.
+        public String describe() {
+            return (name != null ? name : "lambda") + " " + line + ":" + column;
+        }
+
+        public String[] getFrameNames() {
+            if (frameNames == null)
+                frameNames = new String[]{variable.getValue()};
+            return frameNames;
+        }
+
         public Stmt getBody() {
             return body;
         }
 
+        public void setBody(Stmt body) {
+            replaceChild(this.body, body);
+            this.body = body;
+        }
+
+        public Runnable getCode() {
+            return code;
+        }
+
+        public void setCode(Runnable code) {
+            this.code = code;
+        }
+
+        public Memo getMemo() {
+            return memo;
+        }
+
+        public void setMemo(Memo memo) {
+            this.memo = memo;
+        }
+
+        // runs the body, in its compiled form if there is one.
+        void run() {
+            if (code != null) code.run();
+            else body.exec();
+        }
+
+        // adds a variable to capture; returns its index in the environment.
+        public int addCapture(final int depth, final int slot) {
+            final int index = captureDepths.length;
+            captureDepths = Arrays.copyOf(captureDepths, index + 1);
+            captureSlots = Arrays.copyOf(captureSlots, index + 1);
+            captureDepths[index] = depth;
+            captureSlots[index] = slot;
+            return index;
+        }
+
         @Override
         protected Value eval() {
             // TODO: students must complete this
             if (!error) {
                 // CODE HERE
-                
-                return new Value(new Lambda(variable, body));
+                if (captureDepths.length > 0) {
+                    final Cell[] env = new Cell[captureDepths.length];
+                    for (int i = 0; i < env.length; i++)
+                        env[i] = table.capture(captureDepths[i], captureSlots[i]);
+                    return Value.of(this, env);
+                }
+                if (value == null)
+                    value = Value.of(this);
+                return value;
             }
-            return new Value();
+            return Value.UNSET;
         }
     }
 
@@ -711,42 +1181,183 @@ public class Main {
     public static class Call extends Expr {
         private final Expr funExpr;
         private final Expr arg;
+        // the operands as suppliers, for call() and tailCall()
+        private final Supplier<Value> function;
+        private final Supplier<Value> argument;
+        // the call that a body has left to be made by its enclosing call
+        private static Lambda tailLambda = null;
+        private static Cell[] tailEnv = null;
+        private static Value tailArg = null;
+        // the mark of the scopes open before the innermost call began
+        private static int callMark = -1;
+        // the number of calls running, counted for the Flight Recorder
+        private static int depth = 0;
 
         public Call(Expr funExpr, Expr arg) {
             this.funExpr = funExpr;
             this.arg = arg;
             this.label = "Call `<fun> @ <arg>`";
+            this.function = funExpr::eval;
+            this.argument = arg::eval;
             addChild(funExpr);
             addChild(arg);
         }
 
+        public Expr getFunExpr() {
+            return funExpr;
+        }
+
+        public Expr getArg() {
+            return arg;
+        }
+
         @Override
         protected Value eval() {
             // TODO: students must complete this
             if (!error) {
                 // CODE HERE
-                if (funExpr.eval().getType() == Type.FUN_T) {
-                    Lambda lambda = funExpr.eval().getLambda();
+                return call(funExpr.eval(), argument);
+            }
+            return Value.UNSET;
+        }
+
+        // calls a function value on the argument the supplier evaluates;
+        // the code of the ClosureCompiler makes its calls through it too.
+        static Value call(final Value fun, final Supplier<Value> arg) {
+            if (fun.getType() == Type.FUN_T) {
+                final Lambda lambda = fun.getLambda();
+                final int mark = table.mark();
+                if (closures) {
+                    // a closure does not see the caller's variables,
+                    // so the argument is evaluated before its scope
+                    final Value val = arg.get();
+                    table.enterCall(lambda.getFrameNames(), fun.getEnv());
+                    table.define(0, lambda.getVariable(), val);
+                } else if (resolver != null) {
+                    table.enterFrame(lambda.getFrameNames());
+                    table.define(0, lambda.getVariable(), arg.get());
+                } else {
                     table.openScope();
-                    table.bind(lambda.getVariable(), arg.eval());
-                    // execute function body
-                    lambda.getBody().exec();
-
-                    Value retVal = new Value();
-                    // capture return value
-                    if (!returnVariables.isEmpty()) {
-                        retVal = returnVariables.pop();
-                    }
-
+                    table.bind(lambda.getVariable(), arg.get());
+                }
+                return Events.enabled ? recorded(lambda, fun.getEnv(), mark) : invoke(lambda, fun.getEnv(), mark);
+            }   else {
+                out.error("ERROR: Attempting to call a non-function.");
+                error = true;
+            }
+            return Value.UNSET;
+        }
+
+        // invokes a lambda as part of an event of the Flight Recorder.
+        private static Value recorded(Lambda lambda, Cell[] env, final int mark) {
+            final Events.Call event = Events.call();
+            depth++;
+            final Value val = invoke(lambda, env, mark);
+            Events.called(event, lambda, depth);
+            depth--;
+            return val;
+        }
+
+        // runs the body of a lambda whose scope has been opened, then the
+        // calls its body leaves in tail position, one after the other, so
+        // tail recursion does not grow the Java stack.
+        private static Value invoke(Lambda lambda, Cell[] env, final int mark) {
+            final int outerMark = callMark;
+            callMark = mark;
+            int tailCalls = 0;
+            while (true) {
+                // execute function body
+                if (memoize) Memo.run(lambda, env);
+                else lambda.run();
+                if (tailLambda == null) break;
+                final Lambda callee = tailLambda;
+                final Cell[] calleeEnv = tailEnv;
+                final Value val = tailArg;
+                tailLambda = null;
+                tailEnv = null;
+                tailArg = null;
+                if (closures) {
+                    table.exitCall();
+                    table.enterCall(callee.getFrameNames(), calleeEnv);
+                    table.define(0, callee.getVariable(), val);
+                } else if (resolver != null) {
+                    table.exitFrame(lambda.getFrameNames());
+                    table.enterFrame(callee.getFrameNames());
+                    table.define(0, callee.getVariable(), val);
+                } else {
                     table.closeScope();
-                    return retVal;
-                }   else {
-                    System.err.println("ERROR: Attempting to call a non-function.");
-                    error = true;
+                    table.openScope();
+                    table.bind(callee.getVariable(), val);
                 }
-                
+                lambda = callee;
+                env = calleeEnv;
+                tailCalls++;
+            }
+            callMark = outerMark;
+
+            Value retVal = Value.UNSET;
+            // capture return value
+            if (memoize) Memo.taking();
+            if (!returnVariables.isEmpty()) {
+                retVal = returnVariables.pop();
+            }
+            // every call made in tail position would have returned through
+            // a ret of its caller, which pushes nothing after an error.
+            for (; tailCalls > 0; tailCalls--) {
+                if (error) {
+                    if (memoize) Memo.taking();
+                    retVal = returnVariables.isEmpty() ? Value.UNSET : returnVariables.pop();
+                }
+            }
+
+            if (closures)
+                table.exitCall();
+            else if (resolver != null)
+                table.exitFrame(lambda.getFrameNames());
+            else
+                table.closeScope();
+            return retVal;
+        }
+
+        // true if the body that just ran left a call to be made.
+        static boolean hasTailCall() {
+            return tailLambda != null;
+        }
+
+        // leaves this call to the enclosing call, once the body it is in
+        // has finished. Returns false if it has to be made right away:
+        // when scopes are traced, since the trace would show the order,
+        // or when a lambda might look up a variable of the caller, which
+        // closures never do.
+        boolean tailCall() {
+            return tailCall(function, argument);
+        }
+
+        static boolean tailCall(final Supplier<Value> function, final Supplier<Value> arg) {
+            if (error || table.isTrace() || callMark < 0)
+                return false;
+            if (!closures && table.bindsAny(callMark, tailCalls.getFreeNames()))
+                return false;
+            final Value fun = function.get();
+            if (fun.getType() != Type.FUN_T) {
+                out.error("ERROR: Attempting to call a non-function.");
+                error = true;
+                return true;
+            }
+            final Lambda lambda = fun.getLambda();
+            // the argument is evaluated as if the callee's scope was open
+            if (closures) {
+                tailArg = arg.get();
+                tailEnv = fun.getEnv();
+            } else if (resolver != null) {
+                table.enterFrame(lambda.getFrameNames());
+                tailArg = arg.get();
+                table.exitFrame(lambda.getFrameNames());
+            } else {
+                tailArg = arg.get();
             }
-            return new Value();
+            tailLambda = lambda;
+            return true;
         }
     }
 
@@ -756,71 +1367,229 @@ public class Main {
         NUM_T, BOOL_T, FUN_T, NONE_T;
     }
 
-    public static class Value {
-        private Object val;
+    // a Value is immutable: numbers and booleans are kept unboxed in an
+    // int payload, and the unset value, both booleans and the small
+    // numbers are shared so that common operations do not allocate.
+    public static final class Value {
+        public static final Value UNSET = new Value(Type.NONE_T, 0, null);
+        public static final Value TRUE = new Value(Type.BOOL_T, 1, null);
+        public static final Value FALSE = new Value(Type.BOOL_T, 0, null);
+
+        // the range of numbers that have a shared Value
+        private static final int CACHE_LOW = -128;
+        private static final int CACHE_HIGH = 1024;
+        private static final Value[] cache = new Value[CACHE_HIGH - CACHE_LOW + 1];
+
+        static {
+            for (int i = 0; i < cache.length; i++)
+                cache[i] = new Value(Type.NUM_T, i + CACHE_LOW, null);
+        }
+
         private final Type type;
+        // the number, or 1/0 for true/false
+        private final int payload;
+        private final Lambda lambda;
+        // the variables captured by a closure
+        private final Cell[] env;
+
+        private Value(Type type, int payload, Lambda lambda) {
+            this(type, payload, lambda, null);
+        }
+
+        private Value(Type type, int payload, Lambda lambda, Cell[] env) {
+            this.type = type;
+            this.payload = payload;
+            this.lambda = lambda;
+            this.env = env;
+        }
 
-        public Value() {
-            type = Type.NONE_T;
+        public static Value of(int n) {
+            if (n >= CACHE_LOW && n <= CACHE_HIGH) return cache[n - CACHE_LOW];
+            return new Value(Type.NUM_T, n, null);
         }
 
-        public Value(int n) {
-            val = n;
-            type = Type.NUM_T;
+        public static Value of(boolean b) {
+            return b ? TRUE : FALSE;
         }
 
-        public Value(boolean b) {
-            val = b;
-            type = Type.BOOL_T;
+        public static Value of(Lambda l) {
+            return new Value(Type.FUN_T, 0, l);
         }
 
-        public Value(Lambda l) {
-            val = l;
-            type = Type.FUN_T;
+        public static Value of(Lambda l, Cell[] env) {
+            return new Value(Type.FUN_T, 0, l, env);
         }
 
         public Type getType() {
             return type;
         }
 
+        // like a cast of the boxed value, this fails for any other type.
         public int getNumber() {
-            return (int) val;
+            if (type != Type.NUM_T) throw new ClassCastException(type + " value is not a number");
+            return payload;
         }
 
         public boolean getBoolean() {
-            return (boolean) val;
+            if (type != Type.BOOL_T) throw new ClassCastException(type + " value is not a boolean");
+            return payload != 0;
         }
 
         public Lambda getLambda() {
-            return (Lambda) val;
+            if (type != Type.FUN_T) throw new ClassCastException(type + " value is not a function");
+            return lambda;
+        }
+
+        // the captured variables of a closure; null if it captured none.
+        public Cell[] getEnv() {
+            return env;
         }
 
         public void writeTo() {
-            switch (type) {
-                case NUM_T, BOOL_T -> System.out.println(val);
-                case FUN_T -> System.out.println("lambda expression");
-                case NONE_T -> System.out.println("Unset value!");
-            }
+            if (type == Type.NUM_T) out.println(payload);
+            else out.println(toString());
         }
 
         @Override
         public String toString() {
             return switch (type) {
-                case NUM_T, BOOL_T -> String.valueOf(val);
+                case NUM_T -> String.valueOf(payload);
+                case BOOL_T -> String.valueOf(payload != 0);
                 case FUN_T -> "lambda expression";
                 case NONE_T -> "Unset value!";
             };
         }
     }
 
+    // ===-----------------------------------------------------------------===
+    // a Frame holds the variables of one scope when the program has been
+    // resolved: slot i holds the value bound to names[i], or null while
+    // that variable is not bound yet.
+    public static class Frame {
+        private String[] names;
+        private Value[] slots;
+        private final Frame parent;
+        // for the frame of a call to a closure: the frame and captured
+        // variables of the caller, which are restored when it returns
+        private final Frame caller;
+        private final Cell[] callerEnv;
+        // how many of the symbol table's dynamic bindings are in this frame
+        private int dynamic = 0;
+
+        public Frame(String[] names, Frame parent) {
+            this(names, parent, null, null);
+        }
+
+        public Frame(String[] names, Frame parent, Frame caller, Cell[] callerEnv) {
+            this.names = names;
+            this.slots = new Value[names.length];
+            this.parent = parent;
+            this.caller = caller;
+            this.callerEnv = callerEnv;
+        }
+
+        // returns the slot of the given name if it is bound in this frame.
+        int slotOf(final String name) {
+            for (int i = 0; i < names.length; i++)
+                if (slots[i] != null && names[i].equals(name))
+                    return i;
+            return -1;
+        }
+
+        // extends this frame to a longer layout with the same prefix.
+        void grow(final String[] names) {
+            this.names = names;
+            if (names.length > slots.length)
+                slots = Arrays.copyOf(slots, names.length);
+        }
+    }
+
+    // a Cell is a variable captured by a closure. It refers to the slot of
+    // the frame that binds the variable rather than copying its value, so
+    // the closure and the scope it was created in see each other's
+    // assignments.
+    public static final class Cell {
+        private final Frame frame;
+        private final int slot;
+
+        public Cell(Frame frame, int slot) {
+            this.frame = frame;
+            this.slot = slot;
+        }
+
+        // null if the variable has not been bound yet
+        Value get() {
+            return frame.slots[slot];
+        }
+
+        void set(Value val) {
+            frame.slots[slot] = val;
+        }
+    }
+
     // ===-----------------------------------------------------------------===
     // this class represents a simple global symbol table.
     public static class SymbolTable {
         private final Map<String, Stack<Value>> binding = new HashMap<>();
         private final Stack<Set<String>> scopeVariables = new Stack<>();
+        // the events of the open scopes; null for those that are not
+        // being recorded
+        private final List<Events.Scope> scopeEvents = new ArrayList<>();
+        // the innermost frame when variables are resolved to slots; frames
+        // are chained in call order, so a name that is not resolved
+        // lexically is found the same way as in the binding map.
+        private Frame frame = null;
+        // the number of frames in the chain
+        private int frames = 0;
+        // the outermost frame, which holds the globals
+        private Frame globals = null;
+        // the variables captured by the running closure
+        private Cell[] env = null;
+        // with dynamic scoping, the names that are looked up at run time,
+        // and the innermost binding of each outside the globals, so that
+        // such a lookup does not walk the frames of every running call;
+        // null names walk the frames, as closures do
+        private Set<String> dynamicNames = null;
+        private final Map<String, Binding> dynamic = new HashMap<>();
+        // whether opening and closing scopes is reported
+        private boolean trace = true;
 
         public SymbolTable() { }
 
+        // reports an error of a variable on standard output.
+        private static void report(final String message) {
+            out.println(message);
+            Events.error(message);
+        }
+
+        // describes what the table holds: the values bound in the open
+        // scopes, shadowed ones included, or in the chain of frames.
+        public String usage() {
+            if (resolver != null) {
+                int values = 0;
+                for (Frame f = frame; f != null; f = f.caller != null ? f.caller : f.parent)
+                    for (Value val : f.slots)
+                        if (val != null) values++;
+                return "Bindings: " + values + " values in " + frames + " frames";
+            }
+            int values = 0;
+            int names = 0;
+            for (Stack<Value> stack : binding.values()) {
+                values += stack.size();
+                if (!stack.isEmpty()) names++;
+            }
+            return "Bindings: " + values + " values of " + names + " names in "
+                    + scopeVariables.size() + " scopes";
+        }
+
+        public void setTrace(final boolean trace) {
+            this.trace = trace;
+        }
+
+        public boolean isTrace() {
+            return trace;
+        }
+
         // returns the value bound to the given name.
         Value lookup(final String name) {
             // TODO: write the implementation
@@ -840,11 +1609,38 @@ public class Main {
             }
         } else {
             error = true;
-            System.out.println("ERROR: No binding for variable `" + name + "` exists!");
+            report("ERROR: No binding for variable `" + name + "` exists!");
         }
-            return new Value();
+            return Value.UNSET;
         }   
 
+        // returns the value of a variable as Identifier.eval() finds it.
+        // Without a resolver this probes the binding map once; lookup()
+        // scans the current scope first, but ends up at the same binding.
+        Value fetch(final Identifier id) {
+            if (resolver != null)
+                return load(id.getDepth(), id.getSlot(), id.getValue());
+            final Stack<Value> stack = binding.get(id.getValue());
+            return stack != null ? stack.peek() : Value.UNSET;
+        }
+
+        // re-binds a variable that fetch() has just found bound.
+        void store(final Identifier id, Value val) {
+            if (resolver != null) {
+                assign(id.getDepth(), id.getSlot(), id.getValue(), val);
+                return;
+            }
+            final Stack<Value> stack = binding.get(id.getValue());
+            stack.set(stack.size() - 1, val);
+        }
+
+        // returns the value bound to the given name, or the unset value if
+        // there is none; unlike lookup() this never fails.
+        Value current(final String name) {
+            final Stack<Value> stack = binding.get(name);
+            return stack == null || stack.isEmpty() ? Value.UNSET : stack.peek();
+        }
+
         // create a new name-value binding.
         public void bind(final String name, Value val) {
             // TODO: write the implementation
@@ -867,7 +1663,7 @@ public class Main {
             }   
             else {
                 error = true;
-                System.out.println("ERROR: Variable `" + name + "` already bound!");
+                report("ERROR: Variable `" + name + "` already bound!");
             }
         }
 
@@ -883,20 +1679,255 @@ public class Main {
 
             }   else {
                 error = true;
-                System.out.println("ERROR: Cannot rebind `" + name + "` because it is not bound!");
+                report("ERROR: Cannot rebind `" + name + "` because it is not bound!");
                 }
         }
 
         public void openScope() {
             // TODO: write the implementation
-            System.out.println("INFO: Opening scope!");
+            if (trace)
+                out.println("INFO: Opening scope!");
             // CODE HERE
             scopeVariables.push(new HashSet<>());
+            if (Events.enabled)
+                scopeEvents.add(Events.scope());
+        }
+
+        // the binding of a name in a frame other than the globals, over the
+        // binding it shadows.
+        private static final class Binding {
+            final Frame frame;
+            final int slot;
+            final Binding shadowed;
+
+            Binding(Frame frame, int slot, Binding shadowed) {
+                this.frame = frame;
+                this.slot = slot;
+                this.shadowed = shadowed;
+            }
+        }
+
+        // keeps the innermost bindings of the given names, which the
+        // Resolver leaves to be looked up at run time.
+        public void setDynamicNames(final Set<String> names) {
+            dynamicNames = names;
+        }
+
+        // returns the frame that binds a name looked up at run time, or
+        // null if only the globals can.
+        private Frame dynamicFrame(final String name) {
+            if (dynamicNames == null || !dynamicNames.contains(name)) {
+                for (Frame f = frame; f != globals && f != null; f = f.parent)
+                    if (f.slotOf(name) >= 0) return f;
+                return null;
+            }
+            final Binding b = dynamic.get(name);
+            return b != null ? b.frame : null;
+        }
+
+        // forgets the dynamic bindings of a frame that is being left.
+        private void leave(final Frame f) {
+            for (int i = 0; f.dynamic > 0 && i < f.names.length; i++) {
+                final Binding b = dynamic.get(f.names[i]);
+                if (b != null && b.frame == f) {
+                    if (b.shadowed != null) dynamic.put(f.names[i], b.shadowed);
+                    else dynamic.remove(f.names[i]);
+                    f.dynamic--;
+                }
+            }
+        }
+
+        // returns the value in the given slot, or looks the name up
+        // dynamically if it has no lexical address or is not bound there.
+        Value load(final int depth, final int slot, final String name) {
+            if (depth >= 0) {
+                Frame f = frame;
+                for (int d = depth; d > 0; d--) f = f.parent;
+                final Value val = f.slots[slot];
+                if (val != null) return val;
+            } else if (depth == Resolver.CAPTURED) {
+                final Value val = env[slot].get();
+                if (val != null) return val;
+            }
+            final Frame f = dynamicFrame(name);
+            if (f != null) return f.slots[f.slotOf(name)];
+            final int i = globals != null ? globals.slotOf(name) : -1;
+            return i >= 0 ? globals.slots[i] : Value.UNSET;
+        }
+
+        // binds the given slot of the innermost frame.
+        public void define(final int slot, final String name, Value val) {
+            if (frame.slots[slot] == null) {
+                frame.slots[slot] = val;
+                if (dynamicNames != null && frame != globals && dynamicNames.contains(name)) {
+                    dynamic.put(name, new Binding(frame, slot, dynamic.get(name)));
+                    frame.dynamic++;
+                }
+            } else {
+                error = true;
+                report("ERROR: Variable `" + name + "` already bound!");
+            }
+        }
+
+        // re-defines the value in the given slot, or of the innermost
+        // frame that has the name bound.
+        void assign(final int depth, final int slot, final String name, Value val) {
+            if (depth >= 0) {
+                Frame f = frame;
+                for (int d = depth; d > 0; d--) f = f.parent;
+                if (f.slots[slot] != null) {
+                    f.slots[slot] = val;
+                    return;
+                }
+            } else if (depth == Resolver.CAPTURED) {
+                final Cell cell = env[slot];
+                if (cell.get() != null) {
+                    cell.set(val);
+                    return;
+                }
+            }
+            Frame f = dynamicFrame(name);
+            if (f == null) f = globals;
+            final int i = f != null ? f.slotOf(name) : -1;
+            if (i >= 0) {
+                f.slots[i] = val;
+                return;
+            }
+            error = true;
+            report("ERROR: Cannot rebind `" + name + "` because it is not bound!");
+        }
+
+        // opens a scope with a frame of the given layout; scopes that
+        // declare nothing do not need a frame.
+        public void enterFrame(final String[] names) {
+            if (trace)
+                out.println("INFO: Opening scope!");
+            if (names.length > 0) {
+                frame = new Frame(names, frame);
+                frames++;
+                if (Events.enabled)
+                    scopeEvents.add(Events.scope());
+            }
+        }
+
+        public void exitFrame(final String[] names) {
+            if (trace)
+                out.println("INFO: Closing scope!");
+            if (names.length > 0) {
+                if (Events.enabled)
+                    closed(frame);
+                leave(frame);
+                frame = frame.parent;
+                frames--;
+            }
+        }
+
+        // opens the scope of a call to a closure. Its frame follows the
+        // globals instead of the caller's frame, and the body sees the
+        // variables the closure captured.
+        public void enterCall(final String[] names, final Cell[] env) {
+            if (trace)
+                out.println("INFO: Opening scope!");
+            frame = new Frame(names, globals, frame, this.env);
+            this.env = env;
+            frames++;
+            if (Events.enabled)
+                scopeEvents.add(Events.scope());
+        }
+
+        public void exitCall() {
+            if (trace)
+                out.println("INFO: Closing scope!");
+            if (Events.enabled)
+                closed(frame);
+            leave(frame);
+            env = frame.callerEnv;
+            frame = frame.caller;
+            frames--;
+        }
+
+        // ends the Scope event of the innermost frame, which the given frame
+        // is. Its depth leaves out the globals, as the depth of a scope does.
+        private void closed(final Frame f) {
+            int bindings = 0;
+            for (Value value : f.slots)
+                if (value != null) bindings++;
+            Events.closed(scopeEvents.remove(scopeEvents.size() - 1), frames - 1, bindings);
+        }
+
+        // captures the variable at the given address, as seen from the
+        // innermost frame.
+        Cell capture(final int depth, final int slot) {
+            if (depth == Resolver.CAPTURED) return env[slot];
+            Frame f = frame;
+            for (int d = depth; d > 0; d--) f = f.parent;
+            return new Cell(f, slot);
+        }
+
+        // marks the scopes that are open now; the scopes opened after it
+        // can then be inspected with bindsAny().
+        int mark() {
+            return resolver != null ? frames : scopeVariables.size();
+        }
+
+        // closes the scopes opened after the mark without tracing them,
+        // when whatever opened them is abandoned.
+        void unwind(final int mark) {
+            if (resolver != null) {
+                for (; frames > mark; frames--) {
+                    if (Events.enabled)
+                        scopeEvents.remove(scopeEvents.size() - 1);
+                    leave(frame);
+                    if (frame.caller != null) {
+                        env = frame.callerEnv;
+                        frame = frame.caller;
+                    } else {
+                        frame = frame.parent;
+                    }
+                }
+                return;
+            }
+            while (scopeVariables.size() > mark) {
+                for (String name : scopeVariables.pop())
+                    binding.get(name).pop();
+                if (Events.enabled)
+                    scopeEvents.remove(scopeEvents.size() - 1);
+            }
+        }
+
+        // returns true if a scope opened after the mark binds one of the
+        // given names.
+        boolean bindsAny(final int mark, final Set<String> names) {
+            if (resolver != null) {
+                Frame f = frame;
+                for (int i = frames; i > mark; i--, f = f.parent)
+                    for (int slot = 0; slot < f.names.length; slot++)
+                        if (f.slots[slot] != null && names.contains(f.names[slot]))
+                            return true;
+                return false;
+            }
+            for (int i = mark; i < scopeVariables.size(); i++)
+                for (String name : scopeVariables.get(i))
+                    if (names.contains(name))
+                        return true;
+            return false;
+        }
+
+        // lays out the outermost frame for the given global names.
+        public void setGlobals(final String[] names) {
+            if (frame == null) {
+                frame = new Frame(names, null);
+                globals = frame;
+                frames++;
+            } else {
+                frame.grow(names);
+            }
         }
 
         public void closeScope() {
             // TODO: write the implementation
-            System.out.println("INFO: Closing scope!");
+            if (trace)
+                out.println("INFO: Closing scope!");
             // CODE HERE
 
             if (!scopeVariables.isEmpty()) {
@@ -905,6 +1936,9 @@ public class Main {
                     binding.get(name).pop();
                     }
                 }
+                if (Events.enabled)
+                    Events.closed(scopeEvents.remove(scopeEvents.size() - 1),
+                            scopeVariables.size(), scopeVariables.peek().size());
                 scopeVariables.pop();
             }
             
@@ -912,7 +1946,62 @@ public class Main {
     }
 
     public static void main(String[] args) throws IOException {
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        String script = null;
+        boolean useVm = false;
+        boolean slots = false;
+        String stacks = null;
+        Profiler.Measure measure = null;
+        int maxFrames = VM.DEFAULT_MAX_FRAMES;
+        int i = 0;
+        if (args.length > 0 && "run".equals(args[0])) {
+            interactive = false;
+            i++;
+        }
+        for (; i < args.length; i++) {
+            final String arg = args[i];
+            if ("-vm".equals(arg)) useVm = true;
+            else if ("-slots".equals(arg)) slots = true;
+            else if ("-closures".equals(arg)) closures = true;
+            else if ("-O".equals(arg)) optimize = true;
+            else if ("-jit".equals(arg)) jit = new Jit();
+            else if ("-cc".equals(arg)) closureCompile = true;
+            else if ("-profile".equals(arg) && measure == null) measure = Profiler.Measure.TIME;
+            else if ("-alloc".equals(arg) && measure == null) measure = Profiler.Measure.ALLOCATION;
+            else if ("-jfr".equals(arg)) Events.enabled = true;
+            else if ("-memo".equals(arg)) memoize = true;
+            else if ("-profile-stacks".equals(arg) && i + 1 < args.length) stacks = args[++i];
+            else if ("-max-frames".equals(arg) && i + 1 < args.length) maxFrames = frames(args[++i]);
+            else if ("-out".equals(arg) && i + 1 < args.length) out = Output.file(Path.of(args[++i]));
+            else if ("-discard".equals(arg)) out = Output.discard();
+            else if ("-in".equals(arg) && i + 1 < args.length) in = Input.mapped(Path.of(args[++i]));
+            else if (!interactive && script == null && !arg.startsWith("-")) script = arg;
+            else usage();
+        }
+        if (slots || closures) resolver = new Resolver(closures);
+        if (useVm) vm = new VM(maxFrames);
+        if (stacks != null && measure == null) measure = Profiler.Measure.TIME;
+        if (measure != null) profiler = new Profiler(measure);
+        // only the tree walker is profiled, and the VM makes its own calls
+        if (profiler != null && (useVm || closureCompile)) usage();
+        if (memoize && useVm) usage();
+        if (!interactive) {
+            if (script == null) usage();
+            final int status = runScript(script);
+            if (profiler != null) {
+                System.err.print(profiler.report());
+                System.err.print(Memo.report());
+                if (stacks != null) writeStacks(Path.of(stacks));
+            }
+            System.exit(status);
+        }
+        try {
+            repl();
+        } finally {
+            out.flush();
+        }
+    }
+
+    private static void repl() throws IOException {
         Lexer lexer;
         Parser parser;
         Stmt stmt = null;
@@ -921,26 +2010,168 @@ public class Main {
         Main.table.openScope();
         while (true) {
             Main.error = false;
-            System.out.print("brain> ");
-            input = reader.readLine();
+            out.print("brain> ");
+            out.flush();
+            input = in.readLine();
             if ("quit".equals(input)) break;
             if ("tree".equals(input)) {
                 if (ast != null)
-                    System.out.println(PrettyPrinter.printAST(ast));
+                    out.println(PrettyPrinter.printAST(ast));
+                continue;
+            }
+            if (input != null && (input.equals("profile") || input.startsWith("profile "))) {
+                final String file = input.substring("profile".length()).trim();
+                if (profiler == null)
+                    out.println("INFO: Profiling is off; start with -profile or -alloc");
+                else if (file.isEmpty())
+                    out.print(profiler.report());
+                else
+                    writeStacks(Path.of(file));
                 continue;
             }
+            if ("mem".equals(input)) {
+                memory(ast);
+                continue;
+            }
+            long start = profiler != null ? profiler.now() : 0;
             lexer = new Lexer(input);
             List<Token> tokens = lexer.getTokens();
 //            System.out.println(tokens);
+            if (profiler != null) {
+                profiler.phase("lex", start);
+                start = profiler.now();
+            }
             parser = new Parser(tokens);
             stmt = parser.init();
+            if (profiler != null) profiler.phase("parse", start);
             if (ast == null) ast = stmt;
             else ast.addChild(stmt);
             if (stmt == null && !Main.error) break;
             else if (stmt != null)
-                stmt.exec();
+                run(stmt);
         }
         Main.table.closeScope();
-        System.out.println("Good bye!");
+        out.println("Good bye!");
+    }
+
+    // reports what the session holds on to: the variables bound in the
+    // symbol table, the statements entered so far, which the REPL keeps
+    // for `tree`, the values returned but not yet taken, and the heap.
+    private static void memory(final Stmt ast) {
+        out.println(table.usage());
+        out.println("AST: " + size(ast) + " nodes retained");
+        out.println("Returns: " + returnVariables.size() + " values pending");
+        out.print(Memo.report());
+        final Runtime runtime = Runtime.getRuntime();
+        final long used = runtime.totalMemory() - runtime.freeMemory();
+        out.println("Heap: " + (used >> 20) + " MB used of " + (runtime.totalMemory() >> 20) + " MB");
+    }
+
+    // counts the nodes reachable from a tree, each once.
+    private static int size(final AST ast) {
+        final Set<AST> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Stack<AST> pending = new Stack<>();
+        if (ast != null) pending.push(ast);
+        while (!pending.isEmpty()) {
+            final AST node = pending.pop();
+            if (!seen.add(node)) continue;
+            for (AST child : node.getChildren())
+                if (child != null) pending.push(child);
+        }
+        return seen.size();
+    }
+
+    private static int frames(final String arg) {
+        try {
+            final int n = Integer.parseInt(arg);
+            if (n > 0) return n;
+        } catch (NumberFormatException ignored) {
+        }
+        usage();
+        return 0;
+    }
+
+    // writes the collapsed stacks measured by the profiler to a file.
+    private static void writeStacks(final Path file) {
+        try {
+            profiler.writeStacks(file);
+        } catch (IOException e) {
+            out.error("ERROR: Cannot write `" + file + "`: " + e.getMessage());
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: Main [-vm [-max-frames <n>] | -cc] [-slots | -closures] [-O] [-jit] [-profile | -alloc] [-profile-stacks <file>] [-jfr] [-memo] [-in <file>] [-out <file> | -discard]");
+        System.err.println("       Main run [-vm [-max-frames <n>] | -cc] [-slots | -closures] [-O] [-jit] [-profile | -alloc] [-profile-stacks <file>] [-jfr] [-memo] [-in <file>] [-out <file> | -discard] <file>");
+        System.exit(2);
+    }
+
+    // runs a whole script file at once, without prompts or scope tracing.
+    // Returns the exit status: 0 on success, 1 if the script could not be
+    // read or parsed or an error occurred while running it.
+    public static int runScript(final String path) {
+        final Stmt program;
+        try {
+            final long start = profiler != null ? profiler.now() : 0;
+            program = new Parser(Lexer.mapped(Path.of(path))).program();
+            // the lexer runs as the parser takes its tokens
+            if (profiler != null) profiler.phase("lex and parse", start);
+        } catch (IOException e) {
+            out.error("ERROR: Cannot read `" + path + "`: " + e.getMessage());
+            return 1;
+        } catch (Error e) {
+            out.error("ERROR: " + e.getMessage());
+            return 1;
+        }
+        table.setTrace(false);
+        table.openScope();
+        try {
+            run(program);
+        } finally {
+            out.flush();
+        }
+        table.closeScope();
+        return error ? 1 : 0;
+    }
+
+    // executes a parsed statement with the selected engine.
+    public static void run(Stmt stmt) {
+        if (profiler == null) {
+            prepare(stmt).run();
+            return;
+        }
+        long start = profiler.now();
+        final Runnable code = prepare(stmt);
+        profiler.phase("prepare", start);
+        start = profiler.now();
+        code.run();
+        profiler.phase("execute", start);
+    }
+
+    // readies a parsed statement for the selected engine and returns what
+    // executes it; a statement that leaves no bindings behind, such as a
+    // Block, may be executed again.
+    public static Runnable prepare(Stmt stmt) {
+        if (optimize)
+            stmt = Optimizer.optimize(stmt);
+        tailCalls.analyze(stmt);
+        if (resolver != null) {
+            resolver.resolve(stmt);
+            table.setGlobals(resolver.getGlobals());
+            // a closure's frames follow the globals, not its caller's
+            if (!closures) table.setDynamicNames(resolver.getDynamicNames());
+        }
+        if (memoize)
+            Memo.analyze(stmt);
+        if (vm != null) {
+            final Chunk chunk = Compiler.compile(stmt);
+            return () -> vm.run(chunk);
+        }
+        if (closureCompile) return ClosureCompiler.compile(stmt);
+        if (optimize)
+            stmt = Superinstructions.fuse(stmt);
+        if (profiler != null)
+            stmt = profiler.instrument(stmt);
+        return stmt::exec;
     }
 }
\ No newline at end of file
@@ -0,0 +1,328 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// a Memo remembers what the calls of a pure lambda returned, so that a
+// call with the same argument returns it again without running the body.
+//
+// A lambda is pure if its body neither writes, reads nor assigns a
+// variable it did not declare itself, and creates no lambdas. What it
+// returns then only depends on its argument, on the values of its free
+// variables and on the functions it calls. The free variables are part of
+// what a call is remembered by, so that a lambda that calls itself
+// through the variable it is bound to, as fib does, is remembered for
+// that variable's value. The functions it calls are only known when they
+// run: a call that runs the body of a lambda that is not pure, or takes a
+// return value pushed before it began, is not remembered.
+//
+// Nor is a call that calls a pure lambda whose free variables hold
+// anything but that lambda itself. What such a callee returns depends on
+// variables that are not part of what the call is remembered by, and that
+// may have changed when it is made again; fib reading fib is the function
+// being called, which the caller has already chosen.
+//
+// A call that ends in an error or leaves a call in tail position to its
+// caller is not remembered either. What is remembered are the values the
+// body pushed on the stack of returned values, which are pushed again.
+// Memos are only used while scopes are not traced, since a remembered
+// call does not open the scopes of the body.
+//
+// Each memo keeps the most recently used CAPACITY calls.
+public final class Memo {
+    private static final int CAPACITY = 4096;
+
+    // set when something that may not be remembered happens in a call
+    private static boolean tainted = false;
+    // the size of the stack of returned values when the innermost call
+    // being remembered began
+    private static int floor = 0;
+    // the memos of all pure lambdas, for report()
+    private static final List<Memo> memos = new ArrayList<>();
+
+    private final Main.Lambda lambda;
+    // the first use of each free variable in the body
+    private final Main.Identifier[] free;
+    private final Map<Key, Main.Value[]> calls = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Main.Value[]> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+    private long hits = 0;
+    private long misses = 0;
+
+    private Memo(Main.Lambda lambda, Main.Identifier[] free) {
+        this.lambda = lambda;
+        this.free = free;
+    }
+
+    // ===-----------------------------------------------------------------===
+    // analysis
+
+    // gives the pure lambdas in a statement sequence a memo. This runs
+    // after the Resolver, whose addresses the free variables are read by.
+    public static void analyze(Main.Stmt stmt) {
+        new Analysis().stmts(stmt);
+    }
+
+    private static final class Analysis {
+        // the names declared in the lambda being analyzed, innermost last;
+        // null at the top level
+        private List<Set<String>> scopes = null;
+        private Map<String, Main.Identifier> free = null;
+        private boolean pure = true;
+
+        private void stmts(Main.Stmt stmt) {
+            for (Main.Stmt s = stmt; s != null; s = s.getNext()) {
+                if (s instanceof Main.NullStmt) {
+                    continue;
+                } else if (s instanceof Main.Block) {
+                    open();
+                    stmts(((Main.Block) s).getBody());
+                    close();
+                } else if (s instanceof Main.IfStmt) {
+                    final Main.IfStmt ifStmt = (Main.IfStmt) s;
+                    expr(ifStmt.getCondition());
+                    stmts(ifStmt.getIfBlock());
+                    stmts(ifStmt.getElseBlock());
+                } else if (s instanceof Main.WhileStmt) {
+                    final Main.WhileStmt whileStmt = (Main.WhileStmt) s;
+                    expr(whileStmt.getCondition());
+                    stmts(whileStmt.getBody());
+                } else if (s instanceof Main.AutoStmt) {
+                    final Main.AutoStmt auto = (Main.AutoStmt) s;
+                    expr(auto.getRhs());
+                    if (scopes != null)
+                        scopes.get(scopes.size() - 1).add(auto.getLhs().getValue());
+                } else if (s instanceof Main.AssignStmt) {
+                    final Main.AssignStmt assign = (Main.AssignStmt) s;
+                    expr(assign.getRhs());
+                    if (!declared(assign.getLhs().getValue())) pure = false;
+                } else if (s instanceof Main.ExprStmt) {
+                    expr(((Main.ExprStmt) s).getValue());
+                } else {
+                    // writes, and anything else
+                    pure = false;
+                }
+            }
+        }
+
+        private void expr(Main.Expr expr) {
+            if (expr instanceof Main.Identifier) {
+                use((Main.Identifier) expr);
+            } else if (expr instanceof Main.ArithmeticOp) {
+                expr(((Main.ArithmeticOp) expr).getLeft());
+                expr(((Main.ArithmeticOp) expr).getRight());
+            } else if (expr instanceof Main.ComparisonOp) {
+                expr(((Main.ComparisonOp) expr).getLeft());
+                expr(((Main.ComparisonOp) expr).getRight());
+            } else if (expr instanceof Main.BooleanOp) {
+                expr(((Main.BooleanOp) expr).getLeft());
+                expr(((Main.BooleanOp) expr).getRight());
+            } else if (expr instanceof Main.NegationOp) {
+                expr(((Main.NegationOp) expr).getRight());
+            } else if (expr instanceof Main.NotOp) {
+                expr(((Main.NotOp) expr).getRight());
+            } else if (expr instanceof Main.ReturnExpr) {
+                expr(((Main.ReturnExpr) expr).getValue());
+            } else if (expr instanceof Main.Lambda) {
+                pure = false;
+                lambda((Main.Lambda) expr);
+            } else if (expr instanceof Main.Call) {
+                expr(((Main.Call) expr).getFunExpr());
+                expr(((Main.Call) expr).getArg());
+            } else if (!(expr instanceof Main.Number) && !(expr instanceof Main.BoolExpr)) {
+                // reads, and anything else
+                pure = false;
+            }
+        }
+
+        // a lambda is analyzed on its own, since its body is not run where
+        // it is written but wherever it is called.
+        private void lambda(Main.Lambda lambda) {
+            final List<Set<String>> outerScopes = scopes;
+            final Map<String, Main.Identifier> outerFree = free;
+            final boolean outerPure = pure;
+            scopes = new ArrayList<>();
+            free = new HashMap<>();
+            pure = true;
+            open();
+            scopes.get(0).add(lambda.getVariable());
+            stmts(lambda.getBody());
+            if (pure) {
+                final Memo memo = new Memo(lambda, free.values().toArray(new Main.Identifier[0]));
+                lambda.setMemo(memo);
+                memos.add(memo);
+            }
+            scopes = outerScopes;
+            free = outerFree;
+            pure = outerPure;
+        }
+
+        private void use(Main.Identifier id) {
+            if (scopes == null || declared(id.getValue())) return;
+            // a free variable is looked up where the lambda is called, or
+            // captured, and never has an address in a frame of its own
+            if (id.getDepth() >= 0) pure = false;
+            free.putIfAbsent(id.getValue(), id);
+        }
+
+        private boolean declared(String name) {
+            if (scopes == null) return true;
+            for (Set<String> scope : scopes)
+                if (scope.contains(name)) return true;
+            return false;
+        }
+
+        private void open() {
+            if (scopes != null) scopes.add(new HashSet<>());
+        }
+
+        private void close() {
+            if (scopes != null) scopes.remove(scopes.size() - 1);
+        }
+    }
+
+    // ===-----------------------------------------------------------------===
+    // calls
+
+    // runs the body of a lambda, in the environment env, whose scope has
+    // been opened and whose parameter is bound, or pushes what it returned
+    // when it was last called the same way.
+    static void run(Main.Lambda lambda, Main.Cell[] env) {
+        final Memo memo = lambda.getMemo();
+        if (memo == null || Main.error || Main.table.isTrace()) {
+            tainted = true;
+            lambda.run();
+            return;
+        }
+        memo.call(env);
+    }
+
+    private void call(Main.Cell[] env) {
+        final Key key = key();
+        // whether the calls this one is part of may not be remembered
+        final boolean free = key.readsFree(lambda, env);
+        final Main.Value[] returned = calls.get(key);
+        if (returned != null) {
+            hits++;
+            tainted |= free;
+            for (Main.Value val : returned)
+                Main.returnVariables.push(val);
+            return;
+        }
+        misses++;
+        final boolean outerTainted = tainted;
+        final int outerFloor = floor;
+        final int size = Main.returnVariables.size();
+        tainted = false;
+        floor = size;
+        lambda.run();
+        if (!tainted && !Main.error && !Main.Call.hasTailCall()) {
+            final List<Main.Value> pushed = Main.returnVariables.subList(size, Main.returnVariables.size());
+            calls.put(key, pushed.toArray(new Main.Value[0]));
+        }
+        tainted |= outerTainted | free;
+        floor = outerFloor;
+    }
+
+    // tells the memo that a call is about to take a returned value; one
+    // pushed before the call being remembered began is not its own.
+    static void taking() {
+        if (Main.returnVariables.size() <= floor) tainted = true;
+    }
+
+    private Key key() {
+        final Main.Value[] values = new Main.Value[free.length + 1];
+        values[0] = read(lambda.getParameter());
+        for (int i = 0; i < free.length; i++)
+            values[i + 1] = read(free[i]);
+        return new Key(values);
+    }
+
+    // reads a variable as the body would at its start.
+    private static Main.Value read(Main.Identifier id) {
+        if (Main.resolver != null)
+            return Main.table.load(id.getDepth(), id.getSlot(), id.getValue());
+        return Main.table.current(id.getValue());
+    }
+
+    // the argument and the free variables of a call. Functions are told
+    // apart by their lambda and environment, not by what they compute.
+    private static final class Key {
+        private final Main.Value[] values;
+        private final int hash;
+
+        Key(Main.Value[] values) {
+            this.values = values;
+            int h = 1;
+            for (Main.Value val : values)
+                h = 31 * h + hash(val);
+            this.hash = h;
+        }
+
+        private static int hash(Main.Value val) {
+            switch (val.getType()) {
+                case NUM_T: return val.getNumber();
+                case BOOL_T: return val.getBoolean() ? 1 : 0;
+                case FUN_T: return System.identityHashCode(val.getLambda());
+                default: return -1;
+            }
+        }
+
+        private static boolean same(Main.Value a, Main.Value b) {
+            if (a.getType() != b.getType()) return false;
+            switch (a.getType()) {
+                case NUM_T: return a.getNumber() == b.getNumber();
+                case BOOL_T: return a.getBoolean() == b.getBoolean();
+                case FUN_T: return a.getLambda() == b.getLambda() && a.getEnv() == b.getEnv();
+                default: return true;
+            }
+        }
+
+        // true if a free variable holds anything but the function being
+        // called, the lambda in the environment env.
+        boolean readsFree(Main.Lambda lambda, Main.Cell[] env) {
+            for (int i = 1; i < values.length; i++) {
+                final Main.Value val = values[i];
+                if (val.getType() != Main.Type.FUN_T || val.getLambda() != lambda || val.getEnv() != env)
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            final Main.Value[] other = ((Key) o).values;
+            if (other.length != values.length) return false;
+            for (int i = 0; i < values.length; i++)
+                if (!same(values[i], other[i])) return false;
+            return true;
+        }
+    }
+
+    // ===-----------------------------------------------------------------===
+    // reports
+
+    // lists the pure lambdas with the calls they remembered and were
+    // spared.
+    public static String report() {
+        final StringBuilder sb = new StringBuilder();
+        for (Memo memo : memos) {
+            if (memo.hits + memo.misses == 0) continue;
+            sb.append(String.format("Memo: %s %d hits %d misses %d calls kept%n",
+                    memo.lambda.describe(), memo.hits, memo.misses, memo.calls.size()));
+        }
+        return sb.toString();
+    }
+}
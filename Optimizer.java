@@ -0,0 +1,218 @@
+// the Optimizer rewrites a parsed program before it runs. It folds
+// operators over literals into literals and drops operations that cannot
+// change their operand: x + 0, x - 0, x * 1, x / 1, - - x and not not x.
+// Branches and loops whose condition is known are pruned, as are empty
+// blocks and expression statements that do nothing.
+//
+// Every rewrite must leave the program's behavior unchanged, including
+// its errors. Division by zero and != (which yields an unset value) are
+// never folded. An operation also checks the type of its operand, so an
+// identity is only removed where the result is used as a number (or a
+// boolean) anyway, or where the operand is known to produce one.
+//
+// Statements are rewritten in place through their setters and relinked
+// when some are dropped; expressions are immutable and are rebuilt where
+// something changed.
+public final class Optimizer {
+    // how the value of an expression is used by its parent
+    private static final int VALUE = 0;
+    private static final int NUMBER = 1;
+    private static final int BOOLEAN = 2;
+
+    private Optimizer() { }
+
+    // optimizes a statement sequence and returns its new first statement.
+    public static Main.Stmt optimize(Main.Stmt stmt) {
+        return stmts(stmt);
+    }
+
+    // optimizes the statements of a sequence and links together the ones
+    // that are kept; returns the new first statement.
+    private static Main.Stmt stmts(Main.Stmt stmt) {
+        if (stmt == null) return null;
+        Main.Stmt first = null;
+        Main.Stmt last = null;
+        for (Main.Stmt s = stmt; s != null; ) {
+            final Main.Stmt next = s.getNext();
+            if (stmt(s)) {
+                if (first == null) first = s;
+                else last.setNext(s);
+                last = s;
+            }
+            s = next;
+        }
+        if (last == null) return Main.NullStmt.END;
+        last.setNext(Main.NullStmt.END);
+        return first;
+    }
+
+    // optimizes a single statement; returns false if it can be dropped.
+    private static boolean stmt(Main.Stmt s) {
+        if (s instanceof Main.NullStmt) {
+            return false;
+        } else if (s instanceof Main.Block) {
+            final Main.Block block = (Main.Block) s;
+            block.setBody(stmts(block.getBody()));
+            // an empty block only opens and closes a scope, which can be
+            // seen when scopes are traced
+            return !isEmpty(block.getBody()) || Main.table.isTrace();
+        } else if (s instanceof Main.IfStmt) {
+            return ifStmt((Main.IfStmt) s);
+        } else if (s instanceof Main.WhileStmt) {
+            final Main.WhileStmt whileStmt = (Main.WhileStmt) s;
+            whileStmt.setCondition(expr(whileStmt.getCondition(), BOOLEAN));
+            whileStmt.setBody(stmts(whileStmt.getBody()));
+            return !isFalse(whileStmt.getCondition());
+        } else if (s instanceof Main.AutoStmt) {
+            final Main.AutoStmt auto = (Main.AutoStmt) s;
+            auto.setRhs(expr(auto.getRhs(), VALUE));
+        } else if (s instanceof Main.AssignStmt) {
+            final Main.AssignStmt assign = (Main.AssignStmt) s;
+            assign.setRhs(expr(assign.getRhs(), VALUE));
+        } else if (s instanceof Main.Write) {
+            final Main.Write write = (Main.Write) s;
+            write.setValue(expr(write.getValue(), VALUE));
+        } else if (s instanceof Main.ExprStmt) {
+            final Main.ExprStmt exprStmt = (Main.ExprStmt) s;
+            exprStmt.setValue(expr(exprStmt.getValue(), VALUE));
+            return !isInert(exprStmt.getValue());
+        }
+        return true;
+    }
+
+    // an if statement runs its branch only when no error has occurred, so
+    // a statically known branch stays behind an always true condition
+    // rather than replacing the if statement.
+    private static boolean ifStmt(Main.IfStmt ifStmt) {
+        ifStmt.setCondition(expr(ifStmt.getCondition(), BOOLEAN));
+        ifStmt.setIfBlock(stmts(ifStmt.getIfBlock()));
+        ifStmt.setElseBlock(stmts(ifStmt.getElseBlock()));
+        if (isFalse(ifStmt.getCondition())) {
+            final Main.Stmt elseBlock = ifStmt.getElseBlock();
+            if (elseBlock == null) return false;
+            ifStmt.setElseBlock(null);
+            ifStmt.setIfBlock(elseBlock);
+            ifStmt.setCondition(new Main.BoolExpr(true));
+        } else if (ifStmt.getCondition() instanceof Main.BoolExpr) {
+            ifStmt.setElseBlock(null);
+        }
+        return !(ifStmt.getCondition() instanceof Main.BoolExpr && isEmpty(ifStmt.getIfBlock()));
+    }
+
+    private static boolean isEmpty(Main.Stmt stmt) {
+        return stmt == null || stmt == Main.NullStmt.END;
+    }
+
+    private static boolean isFalse(Main.Expr expr) {
+        return expr instanceof Main.BoolExpr && !((Main.BoolExpr) expr).getValue();
+    }
+
+    // true if evaluating the expression can neither fail nor have an
+    // effect, so a statement that only evaluates it does nothing.
+    private static boolean isInert(Main.Expr expr) {
+        return expr instanceof Main.Number || expr instanceof Main.BoolExpr
+                || expr instanceof Main.Identifier || expr instanceof Main.Lambda;
+    }
+
+    private static Main.Expr expr(Main.Expr expr, int use) {
+        if (expr instanceof Main.ArithmeticOp) {
+            return arithmetic((Main.ArithmeticOp) expr, use);
+        } else if (expr instanceof Main.ComparisonOp) {
+            final Main.ComparisonOp op = (Main.ComparisonOp) expr;
+            final Main.Expr left = expr(op.getLeft(), NUMBER);
+            final Main.Expr right = expr(op.getRight(), NUMBER);
+            final Main.ComparisonOp result = left == op.getLeft() && right == op.getRight()
+                    ? op : Main.ComparisonOp.of(left, right, op.getOp());
+            if (left instanceof Main.Number && right instanceof Main.Number && op.getOp() != Main.Oper.NE)
+                return new Main.BoolExpr(result.evalBoolean());
+            return result;
+        } else if (expr instanceof Main.BooleanOp) {
+            final Main.BooleanOp op = (Main.BooleanOp) expr;
+            final Main.Expr left = expr(op.getLeft(), BOOLEAN);
+            final Main.Expr right = expr(op.getRight(), BOOLEAN);
+            final Main.BooleanOp result = left == op.getLeft() && right == op.getRight()
+                    ? op : Main.BooleanOp.of(left, right, op.getOp());
+            if (left instanceof Main.BoolExpr && right instanceof Main.BoolExpr)
+                return new Main.BoolExpr(result.evalBoolean());
+            return result;
+        } else if (expr instanceof Main.NegationOp) {
+            final Main.NegationOp op = (Main.NegationOp) expr;
+            final Main.Expr right = expr(op.getRight(), NUMBER);
+            if (right instanceof Main.NegationOp) {
+                final Main.Expr operand = ((Main.NegationOp) right).getRight();
+                if (use == NUMBER || isNumber(operand)) return operand;
+            }
+            final Main.NegationOp result = right == op.getRight() ? op : new Main.NegationOp(right);
+            if (right instanceof Main.Number)
+                return new Main.Number(result.evalNumber());
+            return result;
+        } else if (expr instanceof Main.NotOp) {
+            final Main.NotOp op = (Main.NotOp) expr;
+            final Main.Expr right = expr(op.getRight(), BOOLEAN);
+            if (right instanceof Main.NotOp) {
+                final Main.Expr operand = ((Main.NotOp) right).getRight();
+                if (use == BOOLEAN || isBoolean(operand)) return operand;
+            }
+            final Main.NotOp result = right == op.getRight() ? op : new Main.NotOp(right);
+            if (right instanceof Main.BoolExpr)
+                return new Main.BoolExpr(result.evalBoolean());
+            return result;
+        } else if (expr instanceof Main.ReturnExpr) {
+            final Main.ReturnExpr ret = (Main.ReturnExpr) expr;
+            final Main.Expr value = expr(ret.getValue(), VALUE);
+            return value == ret.getValue() ? ret : new Main.ReturnExpr(value);
+        } else if (expr instanceof Main.Lambda) {
+            final Main.Lambda lambda = (Main.Lambda) expr;
+            final Main.Stmt body = stmts(lambda.getBody());
+            if (body == lambda.getBody()) return lambda;
+            final Main.Lambda result = new Main.Lambda(lambda.getParameter(), body);
+            result.setPosition(lambda.getLine(), lambda.getColumn());
+            result.setName(lambda.getName());
+            return result;
+        } else if (expr instanceof Main.Call) {
+            final Main.Call call = (Main.Call) expr;
+            final Main.Expr funExpr = expr(call.getFunExpr(), VALUE);
+            final Main.Expr arg = expr(call.getArg(), VALUE);
+            return funExpr == call.getFunExpr() && arg == call.getArg() ? call : new Main.Call(funExpr, arg);
+        }
+        return expr;
+    }
+
+    private static Main.Expr arithmetic(Main.ArithmeticOp op, int use) {
+        final Main.Expr left = expr(op.getLeft(), NUMBER);
+        final Main.Expr right = expr(op.getRight(), NUMBER);
+        final Main.Oper oper = op.getOp();
+        final Main.ArithmeticOp result = left == op.getLeft() && right == op.getRight()
+                ? op : Main.ArithmeticOp.of(left, right, oper);
+        if (left instanceof Main.Number && right instanceof Main.Number) {
+            // dividing by zero is left to report its error at run time
+            if (oper != Main.Oper.DIV || ((Main.Number) right).getValue() != 0)
+                return new Main.Number(result.evalNumber());
+            return result;
+        }
+        Main.Expr operand = null;
+        if (is(right, 0) && (oper == Main.Oper.ADD || oper == Main.Oper.SUB)) operand = left;
+        else if (is(right, 1) && (oper == Main.Oper.MUL || oper == Main.Oper.DIV)) operand = left;
+        else if (is(left, 0) && oper == Main.Oper.ADD) operand = right;
+        else if (is(left, 1) && oper == Main.Oper.MUL) operand = right;
+        if (operand != null && (use == NUMBER || isNumber(operand)))
+            return operand;
+        return result;
+    }
+
+    private static boolean is(Main.Expr expr, int value) {
+        return expr instanceof Main.Number && ((Main.Number) expr).getValue() == value;
+    }
+
+    // true if the expression always evaluates to Value.of(evalNumber()),
+    // so that it fails in eval() exactly where it would in evalNumber().
+    private static boolean isNumber(Main.Expr expr) {
+        return expr instanceof Main.Number || expr instanceof Main.NegationOp
+                || expr instanceof Main.ArithmeticOp && ((Main.ArithmeticOp) expr).getOp() != Main.Oper.DIV;
+    }
+
+    private static boolean isBoolean(Main.Expr expr) {
+        return expr instanceof Main.BoolExpr || expr instanceof Main.NotOp || expr instanceof Main.BooleanOp
+                || expr instanceof Main.ComparisonOp && ((Main.ComparisonOp) expr).getOp() != Main.Oper.NE;
+    }
+}
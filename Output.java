@@ -0,0 +1,112 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// an Output collects everything the interpreter prints on standard output
+// in a large buffer and hands it to its target in blocks. It is flushed at
+// the end of the program, before input is read and before an error is
+// reported on standard error, so both streams still appear in order.
+public final class Output {
+    private static final int CAPACITY = 1 << 16;
+
+    // where the output goes; null discards it
+    private final OutputStream target;
+    private final byte[] buffer = new byte[CAPACITY];
+    private int size = 0;
+
+    private Output(OutputStream target) {
+        this.target = target;
+    }
+
+    // standard output, without the locking and per line flushing of System.out
+    public static Output stdout() {
+        return new Output(new FileOutputStream(FileDescriptor.out));
+    }
+
+    public static Output file(Path path) throws IOException {
+        return new Output(Files.newOutputStream(path));
+    }
+
+    public static Output discard() {
+        return new Output(null);
+    }
+
+    public void print(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (size == buffer.length) drain();
+            final char c = s.charAt(i);
+            buffer[size++] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+    }
+
+    public void println(String s) {
+        print(s);
+        newline();
+    }
+
+    // writes the digits straight into the buffer, without making a String.
+    public void println(int n) {
+        if (n == Integer.MIN_VALUE) {
+            println(String.valueOf(n));
+            return;
+        }
+        if (size + 12 > buffer.length) drain();
+        if (n < 0) {
+            buffer[size++] = '-';
+            n = -n;
+        }
+        int end = size + digits(n);
+        size = end;
+        do {
+            buffer[--end] = (byte) ('0' + n % 10);
+            n /= 10;
+        } while (n != 0);
+        newline();
+    }
+
+    private static int digits(int n) {
+        int count = 1;
+        while (n >= 10) {
+            n /= 10;
+            count++;
+        }
+        return count;
+    }
+
+    private void newline() {
+        if (size == buffer.length) drain();
+        buffer[size++] = '\n';
+    }
+
+    // reports an error on standard error after everything printed so far.
+    public void error(String message) {
+        flush();
+        System.err.println(message);
+        Events.error(message);
+    }
+
+    public void flush() {
+        drain();
+        if (target == null) return;
+        try {
+            target.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void drain() {
+        if (target != null && size > 0) {
+            try {
+                target.write(buffer, 0, size);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        size = 0;
+    }
+}
@@ -1,17 +1,39 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Supplier;
 
 public class Parser {
     // from where do we get the tokens
-    private final List<Token> input;
+    private final Supplier<Token> input;
+    // tokens already taken from the input for peek(), ahead of lookahead
+    private final ArrayDeque<Token> window = new ArrayDeque<>();
     // the current lookahead token
     private Token lookahead;
-    private int p = 0;
 
     public Parser(List<Token> input) {
+        this(tokens(input));
+    }
+
+    // pulls the tokens from the lexer as they are needed, so the token
+    // list of the whole input is never built.
+    public Parser(Lexer lexer) {
+        this(lexer::nextToken);
+    }
+
+    // the input must keep returning its last token once it is exhausted.
+    public Parser(Supplier<Token> input) {
         this.input = input;
         consume();
     }
 
+    // yields the tokens of the list, then repeats the last one.
+    private static Supplier<Token> tokens(List<Token> list) {
+        final Iterator<Token> it = list.iterator();
+        final Token last = list.get(list.size() - 1);
+        return () -> it.hasNext() ? it.next() : last;
+    }
+
     // lookahead token type matches x, consume & return else error.
     public void match(int x) {
         if (lookahead.type == x) consume();
@@ -19,32 +41,63 @@ public class Parser {
     }
 
     public void consume() {
-        if (p >= input.size() - 1) lookahead = input.get(input.size() - 1);
-        else lookahead = input.get(p);
-        ++p;
+        lookahead = window.isEmpty() ? input.get() : window.removeFirst();
     }
 
+    // returns the token LA positions after the lookahead token.
     public Token peek(int LA) {
-        if (p + LA - 1 >= input.size()) return input.get(p - 1);
-        return input.get(p + LA - 1);
+        while (window.size() < LA)
+            window.addLast(input.get());
+        final Iterator<Token> it = window.iterator();
+        for (int i = 1; i < LA; i++) it.next();
+        return it.next();
     }
 
     public Main.Stmt init() {
-        return stmt();
+        final Events.Parse event = Events.parse();
+        final Main.Stmt stmt = stmt();
+        Events.parsed(event, lookahead.line);
+        return stmt;
+    }
+
+    // parses a whole program: a sequence of statements up to the end of
+    // the input.
+    public Main.Stmt program() {
+        final Events.Parse event = Events.parse();
+        final Main.Stmt stmt = stmtList();
+        match(Lexer.EOF_TYPE);
+        Events.parsed(event, lookahead.line);
+        return stmt;
     }
 
     public Main.Block block() {
         if (lookahead.type == Lexer.LC) {
+            final Token start = lookahead;
             match(Lexer.LC);
             Main.Block block = new Main.Block(stmtList());
             match(Lexer.RC);
-            return block;
+            return at(start, block);
         }
         return null;
     }
 
+    // gives the node the position of the token it starts with.
+    private static <T extends Main.AST> T at(Token start, T node) {
+        node.setPosition(start.line, start.column);
+        return node;
+    }
+
+    // a lambda takes the name of the variable it is bound to.
+    private static void name(Main.Identifier variable, Main.Expr expr) {
+        if (expr instanceof Main.Lambda)
+            ((Main.Lambda) expr).setName(variable.getValue());
+    }
+
+    // builds the sequence with a pointer to its last statement, so that
+    // each statement is appended in constant time.
     public Main.Stmt stmtList() {
-        Main.Stmt next = new Main.NullStmt();
+        Main.Stmt first = null;
+        Main.Stmt last = null;
         while (lookahead.type == Lexer.AUTO ||
                 lookahead.type == Lexer.IDENT ||
                 lookahead.type == Lexer.WRITE ||
@@ -53,12 +106,16 @@ public class Parser {
                 lookahead.type == Lexer.IF_ELSE ||
                 lookahead.type == Lexer.WHILE ||
                 lookahead.type == Lexer.LC) {
-            next = Main.Stmt.append(next, stmt());
+            final Main.Stmt stmt = stmt();
+            if (first == null) first = stmt;
+            else last.setNext(stmt);
+            last = stmt;
         }
-        return next;
+        return first != null ? first : Main.NullStmt.END;
     }
 
     public Main.Stmt stmt() {
+        final Token start = lookahead;
         if (lookahead.type == Lexer.AUTO) {
             match(Lexer.AUTO);
             Main.Identifier variable = new Main.Identifier(lookahead.text);
@@ -66,7 +123,8 @@ public class Parser {
             match(Lexer.ASN);
             Main.Expr expr = expr();
             match(Lexer.SEMI);
-            return new Main.AutoStmt(variable, expr);
+            name(variable, expr);
+            return at(start, new Main.AutoStmt(variable, expr));
         }
         if (lookahead.type == Lexer.IDENT && peek(1).type != Lexer.FUNARG) {
             Main.Identifier variable = new Main.Identifier(lookahead.text);
@@ -74,36 +132,42 @@ public class Parser {
             match(Lexer.ASN);
             Main.Expr expr = expr();
             match(Lexer.SEMI);
-            return new Main.AssignStmt(variable, expr);
+            name(variable, expr);
+            return at(start, new Main.AssignStmt(variable, expr));
         }
         if (lookahead.type == Lexer.WRITE) {
             match(Lexer.WRITE);
             Main.Expr expr = expr();
             match(Lexer.SEMI);
-            return new Main.Write(expr);
+            return at(start, new Main.Write(expr));
         }
         if (lookahead.type == Lexer.IF) {
             match(Lexer.IF);
             Main.Expr expr = expr();
             Main.Block ifblock = block();
-            return new Main.IfStmt(expr, ifblock, null);
+            return at(start, new Main.IfStmt(expr, ifblock, null));
         }
         if (lookahead.type == Lexer.IF_ELSE) {
             match(Lexer.IF_ELSE);
             Main.Expr expr = expr();
             Main.Block ifblock = block();
             Main.Block elseBlock = block();
-            return new Main.IfStmt(expr, ifblock, elseBlock);
+            return at(start, new Main.IfStmt(expr, ifblock, elseBlock));
         }
         if (lookahead.type == Lexer.WHILE) {
             match(Lexer.WHILE);
             Main.Expr expr = expr();
             Main.Block block = block();
-            return new Main.WhileStmt(expr, block);
+            return at(start, new Main.WhileStmt(expr, block));
         }
         if (lookahead.type == Lexer.LC)
             return block();
-        return new Main.ExprStmt(expr());
+        final Main.Expr expr = expr();
+        // an expression statement may end with a semicolon; a return
+        // expression has already consumed its own
+        if (!(expr instanceof Main.ReturnExpr) && lookahead.type == Lexer.SEMI)
+            match(Lexer.SEMI);
+        return at(start, new Main.ExprStmt(expr));
     }
 
     public Main.Expr expr() {
@@ -113,9 +177,10 @@ public class Parser {
     public Main.Expr or() {
         Main.Expr expr = and();
         while (lookahead.type == Lexer.OR) {
+            final Token op = lookahead;
             match(Lexer.OR);
             Main.Expr right = and();
-            expr = new Main.BooleanOp(expr, right, Main.Oper.OR);
+            expr = at(op, Main.BooleanOp.of(expr, right, Main.Oper.OR));
         }
         return expr;
     }
@@ -123,9 +188,10 @@ public class Parser {
     public Main.Expr and() {
         Main.Expr expr = equality();
         while (lookahead.type == Lexer.AND) {
+            final Token op = lookahead;
             match(Lexer.AND);
             Main.Expr right = equality();
-            expr = new Main.BooleanOp(expr, right, Main.Oper.AND);
+            expr = at(op, Main.BooleanOp.of(expr, right, Main.Oper.AND));
         }
         return expr;
     }
@@ -133,6 +199,7 @@ public class Parser {
     public Main.Expr equality() {
         Main.Expr expr = comparison();
         while (lookahead.type == Lexer.EQ || lookahead.type == Lexer.NE) {
+            final Token start = lookahead;
             Main.Oper op = Main.Oper.EQ;
             if (lookahead.type == Lexer.EQ)
                 match(Lexer.EQ);
@@ -141,7 +208,7 @@ public class Parser {
                 match(Lexer.NE);
             }
             Main.Expr right = comparison();
-            expr = new Main.ComparisonOp(expr, right, op);
+            expr = at(start, Main.ComparisonOp.of(expr, right, op));
         }
         return expr;
     }
@@ -150,6 +217,7 @@ public class Parser {
         Main.Expr expr = term();
         while (lookahead.type == Lexer.GT || lookahead.type == Lexer.GE ||
                 lookahead.type == Lexer.LT || lookahead.type == Lexer.LE) {
+            final Token start = lookahead;
             Main.Oper op = Main.Oper.GT;
             if (lookahead.type == Lexer.GT)
                 match(Lexer.GT);
@@ -164,7 +232,7 @@ public class Parser {
                 match(Lexer.LE);
             }
             Main.Expr right = term();
-            expr = new Main.ComparisonOp(expr, right, op);
+            expr = at(start, Main.ComparisonOp.of(expr, right, op));
         }
         return expr;
     }
@@ -172,6 +240,7 @@ public class Parser {
     public Main.Expr term() {
         Main.Expr expr = factor();
         while (lookahead.type == Lexer.SUB || lookahead.type == Lexer.ADD) {
+            final Token start = lookahead;
             Main.Oper op = Main.Oper.ADD;
             if (lookahead.type == Lexer.ADD)
                 match(Lexer.ADD);
@@ -180,7 +249,7 @@ public class Parser {
                 match(Lexer.SUB);
             }
             Main.Expr right = factor();
-            expr = new Main.ArithmeticOp(expr, right, op);
+            expr = at(start, Main.ArithmeticOp.of(expr, right, op));
         }
         return expr;
     }
@@ -188,6 +257,7 @@ public class Parser {
     public Main.Expr factor() {
         Main.Expr expr = unary();
         while (lookahead.type == Lexer.MUL || lookahead.type == Lexer.DIV) {
+            final Token start = lookahead;
             Main.Oper op = Main.Oper.MUL;
             if (lookahead.type == Lexer.MUL)
                 match(Lexer.MUL);
@@ -196,13 +266,14 @@ public class Parser {
                 match(Lexer.DIV);
             }
             Main.Expr right = factor();
-            expr = new Main.ArithmeticOp(expr, right, op);
+            expr = at(start, Main.ArithmeticOp.of(expr, right, op));
         }
         return expr;
     }
 
     public Main.Expr unary() {
         if (lookahead.type == Lexer.NOT || lookahead.type == Lexer.SUB) {
+            final Token start = lookahead;
             final int op = lookahead.type;
             if (op == Lexer.NOT)
                 match(Lexer.NOT);
@@ -210,51 +281,52 @@ public class Parser {
                 match(Lexer.SUB);
             Main.Expr expr = unary();
             if (op == Lexer.NOT)
-                return new Main.NotOp(expr);
+                return at(start, new Main.NotOp(expr));
             else
-                return new Main.NegationOp(expr);
+                return at(start, new Main.NegationOp(expr));
         }
         return call();
     }
 
     public Main.Expr call() {
+        final Token start = lookahead;
         if (lookahead.type == Lexer.LAMBDA) {
             match(Lexer.LAMBDA);
             Main.Identifier variable = new Main.Identifier(lookahead.text);
             match(Lexer.IDENT);
-            return new Main.Lambda(variable, block());
+            return at(start, new Main.Lambda(variable, block()));
         }
         if (lookahead.type == Lexer.READ) {
             match(Lexer.READ);
-            return new Main.Read();
+            return at(start, new Main.Read());
         }
         if (lookahead.type == Lexer.RETURN) {
             match(Lexer.RETURN);
             match(Lexer.ASN);
             Main.Expr expr = expr();
             match(Lexer.SEMI);
-            return new Main.ReturnExpr(expr);
+            return at(start, new Main.ReturnExpr(expr));
         }
         Main.Expr expr = primary();
         if (lookahead.type == Lexer.FUNARG) {
             match(Lexer.FUNARG);
             Main.Expr arg = expr();
-            return new Main.Call(expr, arg);
+            return at(start, new Main.Call(expr, arg));
         }
         return expr;
     }
 
     public Main.Expr primary() {
         if (lookahead.type == Lexer.IDENT) {
-            Main.Identifier variable = new Main.Identifier(lookahead.text);
+            Main.Identifier variable = at(lookahead, new Main.Identifier(lookahead.text));
             match(Lexer.IDENT);
             return variable;
         } else if (lookahead.type == Lexer.NUMBER) {
-            Main.Number number = new Main.Number(Integer.parseInt(lookahead.text));
+            Main.Number number = at(lookahead, new Main.Number(Integer.parseInt(lookahead.text)));
             match(Lexer.NUMBER);
             return number;
         } else if (lookahead.type == Lexer.BOOL) {
-            Main.BoolExpr bool = new Main.BoolExpr(Boolean.parseBoolean(lookahead.text));
+            Main.BoolExpr bool = at(lookahead, new Main.BoolExpr(Boolean.parseBoolean(lookahead.text)));
             match(Lexer.BOOL);
             return bool;
         }
@@ -0,0 +1,486 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// the Profiler measures where the tree-walking interpreter spends its time,
+// or where it allocates its memory. It counts how often every statement and
+// every function runs, and adds up what they take in total and by
+// themselves, that is without the statements they contain and the
+// functions they call. Statements and functions are told apart by their
+// position in the source; statements are also added up by the class of
+// their node. The phases of running a program, from parsing it to
+// executing it, are measured as they are reported by Main.
+//
+// Nothing is measured unless a program is instrumented: each statement is
+// then replaced by a probe that runs it, and each lambda body is run
+// through one, much like Superinstructions replaces nodes. A program that
+// is not profiled runs exactly the nodes it always did.
+//
+// When allocations are measured, every expression is probed as well, so
+// that the values, closures and calls of a statement are put down to the
+// variable, constant, operator, lambda or call that created them, by
+// their node class too. The expressions are rebuilt around their probes,
+// as the Optimizer rebuilds them; a call in tail position and the nodes
+// fused by Superinstructions are probed as a whole. Time is not measured
+// by expression, since a probe takes longer than most expressions.
+//
+// The probes also record where they ran, in a tree of the paths through
+// the functions and statements of the program, from which a collapsed
+// stack file can be written for flame graph tools.
+public final class Profiler {
+    // how many statements and functions a report lists
+    private static final int TOP = 20;
+
+    // what a profiler measures: a count that only grows, read before and
+    // after something runs, and how it is reported.
+    public enum Measure {
+        TIME("ms", 1e6, 1000) {
+            @Override
+            long read() {
+                return System.nanoTime();
+            }
+        },
+        // the bytes allocated on the heap by the running thread, which
+        // include the values, scopes and tokens the interpreter creates
+        ALLOCATION("KB", 1024, 1) {
+            @Override
+            long read() {
+                return Threads.BEAN.getCurrentThreadAllocatedBytes();
+            }
+        };
+
+        private final String unit;
+        // what a unit is in the counts read, and in collapsed stacks
+        private final double scale;
+        private final long stackScale;
+
+        Measure(String unit, double scale, long stackScale) {
+            this.unit = unit;
+            this.scale = scale;
+            this.stackScale = stackScale;
+        }
+
+        abstract long read();
+    }
+
+    // loaded for ALLOCATION only
+    private static final class Threads {
+        static final com.sun.management.ThreadMXBean BEAN =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    private final Measure measure;
+    // whether expressions are probed
+    private final boolean byExpression;
+
+    private final List<Entry> statements = new ArrayList<>();
+    private final List<Entry> expressions = new ArrayList<>();
+    private final List<Entry> functions = new ArrayList<>();
+    // the root of the paths, and the path of what is running now
+    private final Site root = new Site(null);
+    private Site site = root;
+    // the function running now; null at the top level
+    private Entry function = null;
+    // what the probes that finished inside the running one took
+    private long inner = 0;
+    // what the phases took, by name
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+
+    public Profiler(Measure measure) {
+        this.measure = measure;
+        this.byExpression = measure == Measure.ALLOCATION;
+    }
+
+    // reads the measure, to be passed to phase() once the phase is over.
+    public long now() {
+        return measure.read();
+    }
+
+    // adds what was measured since start to the phase of the given name.
+    public void phase(String name, long start) {
+        phases.merge(name, measure.read() - start, Long::sum);
+    }
+
+    // instruments a statement sequence and returns its new first statement.
+    public Main.Stmt instrument(Main.Stmt stmt) {
+        return stmts(stmt);
+    }
+
+    private Main.Stmt stmts(Main.Stmt stmt) {
+        if (stmt == null) return null;
+        Main.Stmt first = null;
+        Main.Stmt last = null;
+        for (Main.Stmt s = stmt; s != null; s = s.getNext()) {
+            final Main.Stmt probe = s instanceof Main.NullStmt ? s : new Probe(parts(s));
+            if (first == null) first = probe;
+            else last.setNext(probe);
+            last = probe;
+        }
+        return first;
+    }
+
+    // instruments the statements and lambdas inside a statement.
+    private Main.Stmt parts(Main.Stmt s) {
+        if (s instanceof Main.Block) {
+            final Main.Block block = (Main.Block) s;
+            block.setBody(stmts(block.getBody()));
+        } else if (s instanceof Main.IfStmt) {
+            final Main.IfStmt ifStmt = (Main.IfStmt) s;
+            ifStmt.setCondition(expr(ifStmt.getCondition()));
+            ifStmt.setIfBlock(stmts(ifStmt.getIfBlock()));
+            ifStmt.setElseBlock(stmts(ifStmt.getElseBlock()));
+        } else if (s instanceof Main.WhileStmt) {
+            final Main.WhileStmt whileStmt = (Main.WhileStmt) s;
+            whileStmt.setCondition(expr(whileStmt.getCondition()));
+            whileStmt.setBody(stmts(whileStmt.getBody()));
+        } else if (s instanceof Main.AutoStmt) {
+            final Main.AutoStmt auto = (Main.AutoStmt) s;
+            auto.setRhs(expr(auto.getRhs()));
+        } else if (s instanceof Main.AssignStmt) {
+            final Main.AssignStmt assign = (Main.AssignStmt) s;
+            if (!Superinstructions.isFused(assign)) assign.setRhs(expr(assign.getRhs()));
+        } else if (s instanceof Main.Write) {
+            final Main.Write write = (Main.Write) s;
+            write.setValue(expr(write.getValue()));
+        } else if (s instanceof Main.ExprStmt) {
+            final Main.ExprStmt exprStmt = (Main.ExprStmt) s;
+            exprStmt.setValue(expr(exprStmt.getValue()));
+        }
+        return s;
+    }
+
+    // instruments the lambdas in an expression and, if expressions are
+    // probed, returns the probe to evaluate in its place.
+    private Main.Expr expr(Main.Expr expr) {
+        final Main.Expr parts = parts(expr);
+        return byExpression && parts != null ? new ExprProbe(parts) : parts;
+    }
+
+    // instruments the parts of an expression; returns the expression
+    // itself, or a copy of it if any of its operands was replaced.
+    private Main.Expr parts(Main.Expr expr) {
+        final Main.Expr result;
+        if (expr instanceof Main.Lambda) {
+            lambda((Main.Lambda) expr);
+            return expr;
+        } else if (Superinstructions.isFused(expr)) {
+            return expr;
+        } else if (expr instanceof Main.ArithmeticOp) {
+            final Main.ArithmeticOp op = (Main.ArithmeticOp) expr;
+            final Main.Expr left = expr(op.getLeft());
+            final Main.Expr right = expr(op.getRight());
+            result = left == op.getLeft() && right == op.getRight() ? op : Main.ArithmeticOp.of(left, right, op.getOp());
+        } else if (expr instanceof Main.ComparisonOp) {
+            final Main.ComparisonOp op = (Main.ComparisonOp) expr;
+            final Main.Expr left = expr(op.getLeft());
+            final Main.Expr right = expr(op.getRight());
+            result = left == op.getLeft() && right == op.getRight() ? op : Main.ComparisonOp.of(left, right, op.getOp());
+        } else if (expr instanceof Main.BooleanOp) {
+            final Main.BooleanOp op = (Main.BooleanOp) expr;
+            final Main.Expr left = expr(op.getLeft());
+            final Main.Expr right = expr(op.getRight());
+            result = left == op.getLeft() && right == op.getRight() ? op : Main.BooleanOp.of(left, right, op.getOp());
+        } else if (expr instanceof Main.NegationOp) {
+            final Main.NegationOp op = (Main.NegationOp) expr;
+            final Main.Expr right = expr(op.getRight());
+            result = right == op.getRight() ? op : new Main.NegationOp(right);
+        } else if (expr instanceof Main.NotOp) {
+            final Main.NotOp op = (Main.NotOp) expr;
+            final Main.Expr right = expr(op.getRight());
+            result = right == op.getRight() ? op : new Main.NotOp(right);
+        } else if (expr instanceof Main.ReturnExpr) {
+            final Main.ReturnExpr ret = (Main.ReturnExpr) expr;
+            // a call in tail position is made by the ret itself
+            final Main.Expr value = ret.isTail() ? parts(ret.getValue()) : expr(ret.getValue());
+            if (value == ret.getValue()) {
+                result = ret;
+            } else {
+                final Main.ReturnExpr copy = new Main.ReturnExpr(value);
+                copy.setTail(ret.isTail());
+                result = copy;
+            }
+        } else if (expr instanceof Main.Call) {
+            final Main.Call call = (Main.Call) expr;
+            final Main.Expr funExpr = expr(call.getFunExpr());
+            final Main.Expr arg = expr(call.getArg());
+            result = funExpr == call.getFunExpr() && arg == call.getArg() ? call : new Main.Call(funExpr, arg);
+        } else {
+            return expr;
+        }
+        if (result != expr) result.setPosition(expr.getLine(), expr.getColumn());
+        return result;
+    }
+
+    private void lambda(Main.Lambda lambda) {
+        final Entry entry = new Entry(lambda.describe());
+        functions.add(entry);
+        final Main.Stmt body = stmts(lambda.getBody());
+        lambda.setBody(body);
+        lambda.setCode(() -> call(entry, body));
+    }
+
+    // runs the body of a function. Only the outermost of the calls of a
+    // recursive function adds to its total, which would otherwise count
+    // the same time once for every call that is running; the same goes
+    // for the statements of such a function.
+    private void call(Entry entry, Main.Stmt body) {
+        final Site outer = site;
+        final Entry caller = function;
+        site = outer.child(entry);
+        function = entry;
+        entry.count++;
+        entry.active++;
+        final long start = measure.read();
+        body.exec();
+        if (--entry.active == 0)
+            entry.total += measure.read() - start;
+        site = outer;
+        function = caller;
+    }
+
+    // a statement that runs another one and measures it.
+    private final class Probe extends Main.Stmt {
+        private final Main.Stmt stmt;
+        private final Entry entry;
+
+        Probe(Main.Stmt stmt) {
+            this.stmt = stmt;
+            this.entry = new Entry(describe(stmt) + " " + position(stmt));
+            this.entry.type = stmt.getClass().getSimpleName();
+            this.label = stmt.getLabel();
+            setPosition(stmt.getLine(), stmt.getColumn());
+            // the tree prints the same as before
+            for (Main.AST child : stmt.getChildren())
+                if (child != stmt.getNext()) addChild(child);
+            statements.add(entry);
+        }
+
+        @Override
+        protected void execute() {
+            final Site outer = site;
+            final long outerInner = inner;
+            site = outer.child(entry);
+            inner = 0;
+            entry.active++;
+            final long start = measure.read();
+            stmt.execute();
+            finish(entry, start, outer, outerInner);
+        }
+    }
+
+    // an expression that evaluates another one and measures it.
+    private final class ExprProbe extends Main.Expr {
+        private final Main.Expr expr;
+        private final Entry entry;
+
+        ExprProbe(Main.Expr expr) {
+            this.expr = expr;
+            this.entry = new Entry(describe(expr) + " " + position(expr));
+            this.entry.type = expr.getClass().getSimpleName();
+            this.label = expr.getLabel();
+            setPosition(expr.getLine(), expr.getColumn());
+            for (Main.AST child : expr.getChildren())
+                addChild(child);
+            expressions.add(entry);
+        }
+
+        @Override
+        protected Main.Value eval() {
+            final Site outer = site;
+            final long outerInner = inner;
+            site = outer.child(entry);
+            inner = 0;
+            entry.active++;
+            final long start = measure.read();
+            final Main.Value val = expr.eval();
+            finish(entry, start, outer, outerInner);
+            return val;
+        }
+
+        @Override
+        protected int evalNumber() {
+            final Site outer = site;
+            final long outerInner = inner;
+            site = outer.child(entry);
+            inner = 0;
+            entry.active++;
+            final long start = measure.read();
+            final int val = expr.evalNumber();
+            finish(entry, start, outer, outerInner);
+            return val;
+        }
+
+        @Override
+        protected boolean evalBoolean() {
+            final Site outer = site;
+            final long outerInner = inner;
+            site = outer.child(entry);
+            inner = 0;
+            entry.active++;
+            final long start = measure.read();
+            final boolean val = expr.evalBoolean();
+            finish(entry, start, outer, outerInner);
+            return val;
+        }
+    }
+
+    // adds what a probe measured since start, less what the probes inside
+    // it took, to its entry, path and function, and returns to the path
+    // and the probe it ran in.
+    private void finish(Entry entry, long start, Site outer, long outerInner) {
+        final long elapsed = measure.read() - start;
+        final long self = elapsed - inner;
+        entry.count++;
+        if (--entry.active == 0) entry.total += elapsed;
+        entry.self += self;
+        site.self += self;
+        if (function != null) function.self += self;
+        site = outer;
+        inner = outerInner + elapsed;
+    }
+
+    private static String describe(Main.Stmt stmt) {
+        if (stmt instanceof Main.Block) return "block";
+        if (stmt instanceof Main.IfStmt)
+            return ((Main.IfStmt) stmt).getElseBlock() != null ? "ifelse" : "if";
+        if (stmt instanceof Main.WhileStmt) return "while";
+        if (stmt instanceof Main.AutoStmt) return "auto " + ((Main.AutoStmt) stmt).getLhs().getValue();
+        if (stmt instanceof Main.AssignStmt) return ((Main.AssignStmt) stmt).getLhs().getValue() + " :=";
+        if (stmt instanceof Main.Write) return "write";
+        if (stmt instanceof Main.ExprStmt && ((Main.ExprStmt) stmt).getValue() instanceof Main.ReturnExpr)
+            return "ret";
+        return "expr";
+    }
+
+    private static String describe(Main.Expr expr) {
+        if (expr instanceof Main.Identifier) return ((Main.Identifier) expr).getValue();
+        if (expr instanceof Main.Number) return Integer.toString(((Main.Number) expr).getValue());
+        if (expr instanceof Main.Lambda) return "lambda";
+        if (expr instanceof Main.Call) return "call";
+        if (expr instanceof Main.ReturnExpr) return "ret";
+        return expr.getClass().getSimpleName();
+    }
+
+    private static String position(Main.AST node) {
+        return node.getLine() + ":" + node.getColumn();
+    }
+
+    // ===-----------------------------------------------------------------===
+    // reports
+
+    // lists what the phases took, and the statements, expressions, node
+    // classes and functions that took the most by themselves.
+    public String report() {
+        final StringBuilder sb = new StringBuilder();
+        if (!phases.isEmpty()) {
+            sb.append(String.format("%10s  %s%n", measure.unit, "phase"));
+            phases.forEach((name, amount) -> sb.append(String.format("%10.3f  %s%n", amount / measure.scale, name)));
+        }
+        table(sb, "statement", "count", statements);
+        if (byExpression) table(sb, "expression", "count", expressions);
+        table(sb, "node", "count", types());
+        table(sb, "function", "calls", functions);
+        return sb.toString();
+    }
+
+    // the statements and expressions added up by the class of their node;
+    // a class has no total of its own, since its nodes may contain each
+    // other.
+    private List<Entry> types() {
+        final Map<String, Entry> types = new HashMap<>();
+        for (List<Entry> entries : List.of(statements, expressions)) {
+            for (Entry e : entries) {
+                final Entry type = types.computeIfAbsent(e.type, Entry::new);
+                type.total = -1;
+                type.count += e.count;
+                type.self += e.self;
+            }
+        }
+        return new ArrayList<>(types.values());
+    }
+
+    private void table(StringBuilder sb, String what, String count, List<Entry> entries) {
+        final String self = "self " + measure.unit;
+        final String total = "total " + measure.unit;
+        sb.append(String.format("%10s %10s %10s  %s%n", self, total, count, what));
+        entries.stream()
+                .filter(e -> e.count > 0)
+                .sorted(Comparator.comparingLong((Entry e) -> e.self).reversed())
+                .limit(TOP)
+                .forEach(e -> sb.append(String.format("%10.3f %10s %10d  %s%n", e.self / measure.scale,
+                        e.total < 0 ? "-" : String.format("%.3f", e.total / measure.scale), e.count, e.name)));
+    }
+
+    // writes every path through the program as a line of its functions and
+    // statements separated by semicolons, followed by the microseconds
+    // spent or the bytes allocated there, which is what flame graph tools
+    // read.
+    public void writeStacks(java.nio.file.Path file) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            // the paths are walked without recursion, since they are as
+            // deep as the recursion of the program
+            final Deque<Site> pending = new ArrayDeque<>();
+            final Deque<String> names = new ArrayDeque<>();
+            pending.push(root);
+            names.push("program");
+            while (!pending.isEmpty()) {
+                final Site s = pending.pop();
+                final String name = names.pop();
+                if (s.self >= measure.stackScale) {
+                    out.write(name);
+                    out.write(' ');
+                    out.write(Long.toString(s.self / measure.stackScale));
+                    out.newLine();
+                }
+                if (s.children != null) {
+                    for (Site child : s.children.values()) {
+                        pending.push(child);
+                        names.push(name + ";" + child.entry.name);
+                    }
+                }
+            }
+        }
+    }
+
+    // a statement or function, with what was measured for it.
+    private static final class Entry {
+        private final String name;
+        // the class of the node of a statement or expression
+        private String type;
+        private long count = 0;
+        private long total = 0;
+        private long self = 0;
+        // how many runs of it have not finished yet
+        private int active = 0;
+
+        Entry(String name) {
+            this.name = name;
+        }
+    }
+
+    // a place in the paths through the program: what runs there, reached
+    // through the path of its parent.
+    private static final class Site {
+        private final Entry entry;
+        private long self = 0;
+        private Map<Entry, Site> children = null;
+
+        Site(Entry entry) {
+            this.entry = entry;
+        }
+
+        Site child(Entry entry) {
+            if (children == null) children = new HashMap<>();
+            return children.computeIfAbsent(entry, Site::new);
+        }
+    }
+}
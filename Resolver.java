@@ -0,0 +1,236 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// the Resolver assigns every variable a lexical (depth, slot) address so
+// that it can be found in a Frame with array loads. A Block gets a frame
+// with one slot per variable declared directly in it, a Call gets a frame
+// holding the parameter, and the outermost frame holds the globals.
+//
+// Functions are dynamically scoped, so a name is only resolved within
+// the function it is used in. A free name inside a lambda body keeps a
+// negative depth and is looked up in the frames at run time; the names
+// looked up that way are collected for the symbol table, which keeps
+// their innermost bindings at hand.
+//
+// With closures, a free name that is declared in a scope around the
+// lambda is captured instead: it gets the CAPTURED depth and the index of
+// the variable in the lambda's environment as its slot. Such a name is
+// captured from the scope that declares it even where it is not bound
+// yet, so a lambda can call itself through the variable it is assigned to.
+public final class Resolver {
+    // the depth of a variable captured by the enclosing closure
+    public static final int CAPTURED = -2;
+
+    // the compile time view of a Frame
+    private static final class Scope {
+        final List<String> names;
+        final Set<String> visible = new HashSet<>();
+        final Scope parent;
+        // a lambda's parameter scope ends lexical resolution
+        final boolean boundary;
+        // for a parameter scope: its lambda, and with closures the index
+        // of each name the lambda captures
+        Main.Lambda lambda = null;
+        final Map<String, Integer> captures = new HashMap<>();
+
+        Scope(List<String> names, Scope parent, boolean boundary) {
+            this.names = names;
+            this.parent = parent;
+            this.boundary = boundary;
+        }
+
+        // scopes that declare nothing are not given a frame at run time.
+        boolean hasFrame() {
+            return parent == null || !names.isEmpty();
+        }
+    }
+
+    private final Scope globals = new Scope(new ArrayList<>(), null, false);
+    private Scope scope = globals;
+    private final boolean closures;
+    // the names that are looked up at run time
+    private final Set<String> dynamicNames = new HashSet<>();
+
+    public Resolver() {
+        this(false);
+    }
+
+    public Resolver(boolean closures) {
+        this.closures = closures;
+    }
+
+    // resolves a statement sequence at the top level; the globals it
+    // declares are kept for the statements resolved after it.
+    public void resolve(Main.Stmt stmt) {
+        for (String name : declared(stmt))
+            if (!globals.names.contains(name))
+                globals.names.add(name);
+        stmts(stmt);
+    }
+
+    public String[] getGlobals() {
+        return globals.names.toArray(new String[0]);
+    }
+
+    // the names left to be looked up at run time so far; the set grows as
+    // more statements are resolved.
+    public Set<String> getDynamicNames() {
+        return dynamicNames;
+    }
+
+    // the distinct names declared by auto statements directly in a sequence.
+    private static List<String> declared(Main.Stmt stmt) {
+        final List<String> names = new ArrayList<>();
+        for (Main.Stmt s = stmt; s != null; s = s.getNext()) {
+            if (s instanceof Main.AutoStmt) {
+                final String name = ((Main.AutoStmt) s).getLhs().getValue();
+                if (!names.contains(name))
+                    names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private void stmts(Main.Stmt stmt) {
+        for (Main.Stmt s = stmt; s != null; s = s.getNext()) {
+            if (s instanceof Main.Block) {
+                block((Main.Block) s);
+            } else if (s instanceof Main.IfStmt) {
+                final Main.IfStmt ifStmt = (Main.IfStmt) s;
+                expr(ifStmt.getCondition());
+                stmts(ifStmt.getIfBlock());
+                stmts(ifStmt.getElseBlock());
+            } else if (s instanceof Main.WhileStmt) {
+                final Main.WhileStmt whileStmt = (Main.WhileStmt) s;
+                expr(whileStmt.getCondition());
+                stmts(whileStmt.getBody());
+            } else if (s instanceof Main.AutoStmt) {
+                final Main.AutoStmt auto = (Main.AutoStmt) s;
+                expr(auto.getRhs());
+                final String name = auto.getLhs().getValue();
+                scope.visible.add(name);
+                auto.getLhs().setAddress(0, scope.names.indexOf(name));
+            } else if (s instanceof Main.AssignStmt) {
+                final Main.AssignStmt assign = (Main.AssignStmt) s;
+                expr(assign.getRhs());
+                resolve(assign.getLhs());
+            } else if (s instanceof Main.Write) {
+                expr(((Main.Write) s).getValue());
+            } else if (s instanceof Main.ExprStmt) {
+                expr(((Main.ExprStmt) s).getValue());
+            }
+        }
+    }
+
+    private void block(Main.Block block) {
+        final List<String> names = declared(block.getBody());
+        block.setFrameNames(names.toArray(new String[0]));
+        scope = new Scope(names, scope, false);
+        stmts(block.getBody());
+        scope = scope.parent;
+    }
+
+    private void expr(Main.Expr expr) {
+        if (expr instanceof Main.Identifier) {
+            resolve((Main.Identifier) expr);
+        } else if (expr instanceof Main.ArithmeticOp) {
+            final Main.ArithmeticOp op = (Main.ArithmeticOp) expr;
+            expr(op.getLeft());
+            expr(op.getRight());
+        } else if (expr instanceof Main.ComparisonOp) {
+            final Main.ComparisonOp op = (Main.ComparisonOp) expr;
+            expr(op.getLeft());
+            expr(op.getRight());
+        } else if (expr instanceof Main.BooleanOp) {
+            final Main.BooleanOp op = (Main.BooleanOp) expr;
+            expr(op.getLeft());
+            expr(op.getRight());
+        } else if (expr instanceof Main.NegationOp) {
+            expr(((Main.NegationOp) expr).getRight());
+        } else if (expr instanceof Main.NotOp) {
+            expr(((Main.NotOp) expr).getRight());
+        } else if (expr instanceof Main.ReturnExpr) {
+            expr(((Main.ReturnExpr) expr).getValue());
+        } else if (expr instanceof Main.Lambda) {
+            lambda((Main.Lambda) expr);
+        } else if (expr instanceof Main.Call) {
+            final Main.Call call = (Main.Call) expr;
+            expr(call.getFunExpr());
+            // a closure's argument is evaluated before its frame is open
+            if (closures) {
+                expr(call.getArg());
+                return;
+            }
+            // the argument is evaluated once the callee's frame is open,
+            // before the parameter is bound in it.
+            final List<String> parameter = new ArrayList<>();
+            parameter.add("@");
+            scope = new Scope(parameter, scope, false);
+            expr(call.getArg());
+            scope = scope.parent;
+        }
+    }
+
+    private void lambda(Main.Lambda lambda) {
+        final List<String> parameter = new ArrayList<>();
+        parameter.add(lambda.getVariable());
+        scope = new Scope(parameter, scope, true);
+        scope.lambda = lambda;
+        scope.visible.add(lambda.getVariable());
+        lambda.getParameter().setAddress(0, 0);
+        stmts(lambda.getBody());
+        scope = scope.parent;
+    }
+
+    private void resolve(Main.Identifier id) {
+        int depth = 0;
+        for (Scope s = scope; s != null; s = s.parent) {
+            if (s.visible.contains(id.getValue())) {
+                id.setAddress(depth, s.names.indexOf(id.getValue()));
+                return;
+            }
+            if (s.boundary) {
+                final int index = closures ? capture(s, id.getValue()) : -1;
+                if (index >= 0) {
+                    id.setAddress(CAPTURED, index);
+                    return;
+                }
+                break;
+            }
+            if (s.hasFrame()) depth++;
+        }
+        id.setAddress(-1, -1);
+        dynamicNames.add(id.getValue());
+    }
+
+    // returns the index of a name in the environment of the lambda with
+    // the given parameter scope, capturing it from the scopes around the
+    // lambda first; -1 if none of them declares it. A name declared
+    // outside an enclosing lambda is captured by that lambda too.
+    private int capture(Scope boundary, String name) {
+        final Integer known = boundary.captures.get(name);
+        if (known != null) return known;
+        int depth = 0;
+        for (Scope s = boundary.parent; s != null; s = s.parent) {
+            final int slot = s.names.indexOf(name);
+            if (slot >= 0)
+                return addCapture(boundary, name, depth, slot);
+            if (s.boundary) {
+                final int index = capture(s, name);
+                return index >= 0 ? addCapture(boundary, name, CAPTURED, index) : -1;
+            }
+            if (s.hasFrame()) depth++;
+        }
+        return -1;
+    }
+
+    private int addCapture(Scope boundary, String name, int depth, int slot) {
+        final int index = boundary.lambda.addCapture(depth, slot);
+        boundary.captures.put(name, index);
+        return index;
+    }
+}
@@ -0,0 +1,237 @@
+import java.util.function.IntBinaryOperator;
+
+// Superinstructions fuses statements and conditions of common shapes into
+// single nodes before the tree walker runs them:
+//
+//   while (i < n)     a comparison of a variable with another variable or
+//   if (n < 2)        a constant, as in the condition of a counted loop
+//   i := i + 1        an update of a variable by a constant (+, - or *)
+//   s := s + i        or by another variable, as when accumulating a sum
+//
+// A fused node reads each variable with a single probe of the symbol
+// table and computes on ints, where the nodes it replaces make virtual
+// calls per operand, look the assigned variable up twice and box the
+// intermediate result. It keeps those nodes and hands over to them
+// whenever a value is not a number or an error has occurred, so that it
+// behaves exactly like them, errors included.
+//
+// Like the operator nodes, a fused node chooses its operation once, when it
+// is built, and does not dispatch on its operator each time it runs.
+//
+// This runs after the Resolver, whose addresses the fused nodes share.
+// Conditions are replaced through their setters and fused statements
+// are linked in place of the ones they replace.
+public final class Superinstructions {
+    private Superinstructions() { }
+
+    // fuses a statement sequence and returns its new first statement.
+    public static Main.Stmt fuse(Main.Stmt stmt) {
+        return stmts(stmt);
+    }
+
+    private static Main.Stmt stmts(Main.Stmt stmt) {
+        Main.Stmt first = stmt;
+        Main.Stmt last = null;
+        for (Main.Stmt s = stmt; s != null; s = s.getNext()) {
+            final Main.Stmt fused = stmt(s);
+            if (fused != s) {
+                fused.setNext(s.getNext());
+                if (last == null) first = fused;
+                else last.setNext(fused);
+            }
+            last = fused;
+        }
+        return first;
+    }
+
+    // fuses the parts of a statement; returns the statement to run in its
+    // place, which is the statement itself unless it was fused.
+    private static Main.Stmt stmt(Main.Stmt s) {
+        if (s instanceof Main.Block) {
+            final Main.Block block = (Main.Block) s;
+            block.setBody(stmts(block.getBody()));
+        } else if (s instanceof Main.IfStmt) {
+            final Main.IfStmt ifStmt = (Main.IfStmt) s;
+            ifStmt.setCondition(condition(ifStmt.getCondition()));
+            ifStmt.setIfBlock(stmts(ifStmt.getIfBlock()));
+            ifStmt.setElseBlock(stmts(ifStmt.getElseBlock()));
+        } else if (s instanceof Main.WhileStmt) {
+            final Main.WhileStmt whileStmt = (Main.WhileStmt) s;
+            whileStmt.setCondition(condition(whileStmt.getCondition()));
+            whileStmt.setBody(stmts(whileStmt.getBody()));
+        } else if (s instanceof Main.AutoStmt) {
+            expr(((Main.AutoStmt) s).getRhs());
+        } else if (s instanceof Main.AssignStmt) {
+            return assign((Main.AssignStmt) s);
+        } else if (s instanceof Main.Write) {
+            expr(((Main.Write) s).getValue());
+        } else if (s instanceof Main.ExprStmt) {
+            expr(((Main.ExprStmt) s).getValue());
+        }
+        return s;
+    }
+
+    // fuses the bodies of the lambdas in an expression.
+    private static void expr(Main.Expr expr) {
+        if (expr instanceof Main.ArithmeticOp) {
+            expr(((Main.ArithmeticOp) expr).getLeft());
+            expr(((Main.ArithmeticOp) expr).getRight());
+        } else if (expr instanceof Main.ComparisonOp) {
+            expr(((Main.ComparisonOp) expr).getLeft());
+            expr(((Main.ComparisonOp) expr).getRight());
+        } else if (expr instanceof Main.BooleanOp) {
+            expr(((Main.BooleanOp) expr).getLeft());
+            expr(((Main.BooleanOp) expr).getRight());
+        } else if (expr instanceof Main.NegationOp) {
+            expr(((Main.NegationOp) expr).getRight());
+        } else if (expr instanceof Main.NotOp) {
+            expr(((Main.NotOp) expr).getRight());
+        } else if (expr instanceof Main.ReturnExpr) {
+            expr(((Main.ReturnExpr) expr).getValue());
+        } else if (expr instanceof Main.Lambda) {
+            final Main.Lambda lambda = (Main.Lambda) expr;
+            lambda.setBody(stmts(lambda.getBody()));
+        } else if (expr instanceof Main.Call) {
+            expr(((Main.Call) expr).getFunExpr());
+            expr(((Main.Call) expr).getArg());
+        }
+    }
+
+    private static Main.Expr condition(Main.Expr condition) {
+        if (condition instanceof Main.ComparisonOp) {
+            final Main.ComparisonOp op = (Main.ComparisonOp) condition;
+            // != yields an unset value rather than a boolean
+            if (op.getOp() != Main.Oper.NE && op.getLeft() instanceof Main.Identifier && isOperand(op.getRight()))
+                return new Compare(op);
+        }
+        expr(condition);
+        return condition;
+    }
+
+    private static Main.Stmt assign(Main.AssignStmt assign) {
+        expr(assign.getRhs());
+        if (!(assign.getRhs() instanceof Main.ArithmeticOp)) return assign;
+        final Main.ArithmeticOp op = (Main.ArithmeticOp) assign.getRhs();
+        // division is left alone, it has to check its divisor
+        if (op.getOp() == Main.Oper.DIV || !isOperand(op.getRight())) return assign;
+        if (!(op.getLeft() instanceof Main.Identifier)) return assign;
+        final Main.Identifier lhs = assign.getLhs();
+        final Main.Identifier var = (Main.Identifier) op.getLeft();
+        if (!var.getValue().equals(lhs.getValue()) || var.getDepth() != lhs.getDepth() || var.getSlot() != lhs.getSlot())
+            return assign;
+        return new Update(assign, op);
+    }
+
+    // true for the nodes made here, which read their operands directly, so
+    // that rebuilding their operands would not change what they run.
+    static boolean isFused(Main.AST node) {
+        return node instanceof Compare || node instanceof Update;
+    }
+
+    // the operands a fused node reads directly: variables and constants.
+    private static boolean isOperand(Main.Expr expr) {
+        return expr instanceof Main.Identifier || expr instanceof Main.Number;
+    }
+
+    private static boolean isNumber(Main.Value value) {
+        return value.getType() == Main.Type.NUM_T;
+    }
+
+    private interface IntComparison {
+        boolean test(int a, int b);
+    }
+
+    private static IntComparison comparison(Main.Oper op) {
+        return switch (op) {
+            case EQ -> (a, b) -> a == b;
+            case LT -> (a, b) -> a < b;
+            case GT -> (a, b) -> a > b;
+            case LE -> (a, b) -> a <= b;
+            case GE -> (a, b) -> a >= b;
+            default -> throw new IllegalArgumentException("not a fused comparison: " + op);
+        };
+    }
+
+    private static IntBinaryOperator update(Main.Oper op) {
+        return switch (op) {
+            case ADD -> (a, b) -> a + b;
+            case SUB -> (a, b) -> a - b;
+            case MUL -> (a, b) -> a * b;
+            default -> throw new IllegalArgumentException("not a fused update: " + op);
+        };
+    }
+
+    // a comparison of a variable with a variable or a constant.
+    private static final class Compare extends Main.ComparisonOp {
+        private final Main.ComparisonOp original;
+        private final IntComparison comparison;
+        private final Main.Identifier var;
+        // the variable compared with, or null to compare with the constant
+        private final Main.Identifier other;
+        private final int constant;
+
+        Compare(Main.ComparisonOp original) {
+            super(original.getLeft(), original.getRight(), original.getOp());
+            setPosition(original.getLine(), original.getColumn());
+            this.original = original;
+            this.comparison = comparison(original.getOp());
+            this.var = (Main.Identifier) original.getLeft();
+            if (original.getRight() instanceof Main.Identifier) {
+                this.other = (Main.Identifier) original.getRight();
+                this.constant = 0;
+            } else {
+                this.other = null;
+                this.constant = ((Main.Number) original.getRight()).getValue();
+            }
+        }
+
+        @Override
+        protected boolean evalBoolean() {
+            if (!Main.error) {
+                final Main.Value l = Main.table.fetch(var);
+                final Main.Value r = other != null ? Main.table.fetch(other) : null;
+                if (isNumber(l) && (r == null || isNumber(r))) {
+                    return comparison.test(l.getNumber(), r != null ? r.getNumber() : constant);
+                }
+            }
+            return original.evalBoolean();
+        }
+    }
+
+    // an assignment of a variable updated by a variable or a constant.
+    private static final class Update extends Main.AssignStmt {
+        private final Main.AssignStmt original;
+        private final IntBinaryOperator op;
+        // the variable to update by, or null to update by the constant
+        private final Main.Identifier other;
+        private final int constant;
+
+        Update(Main.AssignStmt original, Main.ArithmeticOp rhs) {
+            super(original.getLhs(), rhs);
+            setPosition(original.getLine(), original.getColumn());
+            this.original = original;
+            this.op = update(rhs.getOp());
+            if (rhs.getRight() instanceof Main.Identifier) {
+                this.other = (Main.Identifier) rhs.getRight();
+                this.constant = 0;
+            } else {
+                this.other = null;
+                this.constant = ((Main.Number) rhs.getRight()).getValue();
+            }
+        }
+
+        @Override
+        protected void execute() {
+            if (Main.error) return;
+            final Main.Identifier var = getLhs();
+            final Main.Value l = Main.table.fetch(var);
+            final Main.Value r = other != null ? Main.table.fetch(other) : null;
+            if (isNumber(l) && (r == null || isNumber(r))) {
+                final int result = op.applyAsInt(l.getNumber(), r != null ? r.getNumber() : constant);
+                Main.table.store(var, Main.Value.of(result));
+                return;
+            }
+            original.execute();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// TailCalls finds the returns in lambda bodies whose value is a call and
+// after which nothing else in the body runs, so that the call can be made
+// by the enclosing call once the body has finished.
+//
+// Functions are dynamically scoped: a callee sees the variables of its
+// caller. A tail call drops the caller's scopes early, which is only safe
+// if no function can look up a variable bound in them. So this also
+// collects the free names of all lambdas, i.e. the names they use without
+// binding them first; Call checks the caller's scopes against them.
+public final class TailCalls {
+    private final Set<String> freeNames = new HashSet<>();
+    // the scopes of the lambda being analyzed; null at the top level
+    private List<Set<String>> scopes = null;
+
+    public TailCalls() { }
+
+    // analyzes the lambdas in a statement sequence; the free names found
+    // are kept for the statements analyzed after it.
+    public void analyze(Main.Stmt stmt) {
+        stmts(stmt);
+    }
+
+    public Set<String> getFreeNames() {
+        return freeNames;
+    }
+
+    private void stmts(Main.Stmt stmt) {
+        for (Main.Stmt s = stmt; s != null; s = s.getNext()) {
+            if (s instanceof Main.Block) {
+                open();
+                stmts(((Main.Block) s).getBody());
+                close();
+            } else if (s instanceof Main.IfStmt) {
+                final Main.IfStmt ifStmt = (Main.IfStmt) s;
+                expr(ifStmt.getCondition());
+                stmts(ifStmt.getIfBlock());
+                stmts(ifStmt.getElseBlock());
+            } else if (s instanceof Main.WhileStmt) {
+                final Main.WhileStmt whileStmt = (Main.WhileStmt) s;
+                expr(whileStmt.getCondition());
+                stmts(whileStmt.getBody());
+            } else if (s instanceof Main.AutoStmt) {
+                final Main.AutoStmt auto = (Main.AutoStmt) s;
+                expr(auto.getRhs());
+                if (scopes != null)
+                    scopes.get(scopes.size() - 1).add(auto.getLhs().getValue());
+            } else if (s instanceof Main.AssignStmt) {
+                final Main.AssignStmt assign = (Main.AssignStmt) s;
+                expr(assign.getRhs());
+                use(assign.getLhs().getValue());
+            } else if (s instanceof Main.Write) {
+                expr(((Main.Write) s).getValue());
+            } else if (s instanceof Main.ExprStmt) {
+                expr(((Main.ExprStmt) s).getValue());
+            }
+        }
+    }
+
+    private void expr(Main.Expr expr) {
+        if (expr instanceof Main.Identifier) {
+            use(((Main.Identifier) expr).getValue());
+        } else if (expr instanceof Main.ArithmeticOp) {
+            final Main.ArithmeticOp op = (Main.ArithmeticOp) expr;
+            expr(op.getLeft());
+            expr(op.getRight());
+        } else if (expr instanceof Main.ComparisonOp) {
+            final Main.ComparisonOp op = (Main.ComparisonOp) expr;
+            expr(op.getLeft());
+            expr(op.getRight());
+        } else if (expr instanceof Main.BooleanOp) {
+            final Main.BooleanOp op = (Main.BooleanOp) expr;
+            expr(op.getLeft());
+            expr(op.getRight());
+        } else if (expr instanceof Main.NegationOp) {
+            expr(((Main.NegationOp) expr).getRight());
+        } else if (expr instanceof Main.NotOp) {
+            expr(((Main.NotOp) expr).getRight());
+        } else if (expr instanceof Main.ReturnExpr) {
+            expr(((Main.ReturnExpr) expr).getValue());
+        } else if (expr instanceof Main.Lambda) {
+            lambda((Main.Lambda) expr);
+        } else if (expr instanceof Main.Call) {
+            final Main.Call call = (Main.Call) expr;
+            expr(call.getFunExpr());
+            expr(call.getArg());
+        }
+    }
+
+    // a lambda is analyzed on its own, since its body is not run where
+    // it is written but wherever it is called.
+    private void lambda(Main.Lambda lambda) {
+        final List<Set<String>> outer = scopes;
+        scopes = new ArrayList<>();
+        open();
+        scopes.get(0).add(lambda.getVariable());
+        stmts(lambda.getBody());
+        scopes = outer;
+        tail(lambda.getBody());
+    }
+
+    // marks the returns of calls that are the last statement to run in a
+    // sequence, looking into the blocks and branches it ends with.
+    private static void tail(Main.Stmt stmt) {
+        Main.Stmt last = null;
+        for (Main.Stmt s = stmt; s != null && !(s instanceof Main.NullStmt); s = s.getNext())
+            last = s;
+        if (last instanceof Main.Block) {
+            tail(((Main.Block) last).getBody());
+        } else if (last instanceof Main.IfStmt) {
+            tail(((Main.IfStmt) last).getIfBlock());
+            tail(((Main.IfStmt) last).getElseBlock());
+        } else if (last instanceof Main.ExprStmt) {
+            final Main.Expr value = ((Main.ExprStmt) last).getValue();
+            if (value instanceof Main.ReturnExpr && ((Main.ReturnExpr) value).getValue() instanceof Main.Call)
+                ((Main.ReturnExpr) value).setTail(true);
+        }
+    }
+
+    private void use(String name) {
+        if (scopes == null) return;
+        for (Set<String> scope : scopes)
+            if (scope.contains(name)) return;
+        freeNames.add(name);
+    }
+
+    private void open() {
+        if (scopes != null) scopes.add(new HashSet<>());
+    }
+
+    private void close() {
+        if (scopes != null) scopes.remove(scopes.size() - 1);
+    }
+}
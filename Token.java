@@ -1,12 +1,21 @@
 public class Token {
     public int type;
     public String text;
+    // where the token starts in the input, counting from 1; 0 if unknown
+    public int line;
+    public int column;
 
     public Token(int type, String text) {
         this.type = type;
         this.text = text;
     }
 
+    public Token(int type, String text, int line, int column) {
+        this(type, text);
+        this.line = line;
+        this.column = column;
+    }
+
     public String toString() {
         String name = Lexer.tokenNames[type];
         return "<'" + text + "'," + name + ">";
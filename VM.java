@@ -0,0 +1,327 @@
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// the VM executes Chunks produced by the Compiler with a single dispatch
+// loop over a shared operand stack. Variables still live in the global
+// symbol table, so programs behave exactly as under eval()/exec().
+//
+// Calls do not recurse in Java: the caller's chunk and position are saved
+// on a frame stack in the heap, so the depth of recursion is bounded by
+// maxFrames rather than by the size of the thread's stack.
+public final class VM {
+    public static final int DEFAULT_MAX_FRAMES = 1_000_000;
+
+    // compiled lambda bodies; lambda values share their body with the
+    // Lambda node they were created from.
+    private final Map<Main.Stmt, Chunk> functions = new IdentityHashMap<>();
+    private final Main.Read read = new Main.Read();
+    private Main.Value[] stack = new Main.Value[256];
+    private int sp = 0;
+    // the frame stack: the chunk and return address of each caller, and
+    // the lambda it called
+    private final int maxFrames;
+    private Chunk[] chunks = new Chunk[64];
+    private int[] returns = new int[64];
+    private Main.Lambda[] callees = new Main.Lambda[64];
+    private int fp = 0;
+
+    public VM() {
+        this(DEFAULT_MAX_FRAMES);
+    }
+
+    public VM(int maxFrames) {
+        this.maxFrames = maxFrames;
+    }
+
+    public void run(Chunk chunk) {
+        final int mark = Main.table.mark();
+        final int returns = Main.returnVariables.size();
+        if (!execute(chunk)) {
+            // the call stack overflowed: abandon the statement, with all
+            // the scopes and returns its calls left behind
+            Arrays.fill(chunks, 0, fp, null);
+            Arrays.fill(callees, 0, fp, null);
+            fp = 0;
+            Arrays.fill(stack, null);
+            sp = 0;
+            Main.table.unwind(mark);
+            Main.returnVariables.setSize(returns);
+        }
+    }
+
+    private void pushFrame(Chunk chunk, int ip, Main.Lambda lambda) {
+        if (fp == chunks.length) {
+            final int length = (int) Math.min((long) fp * 2, maxFrames);
+            chunks = Arrays.copyOf(chunks, length);
+            returns = Arrays.copyOf(returns, length);
+            callees = Arrays.copyOf(callees, length);
+        }
+        chunks[fp] = chunk;
+        returns[fp] = ip;
+        callees[fp] = lambda;
+        fp++;
+    }
+
+    private void ensureStack(int size) {
+        if (size > stack.length)
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, size));
+    }
+
+    private Chunk function(Main.Lambda lambda) {
+        Chunk chunk = functions.get(lambda.getBody());
+        if (chunk == null) {
+            chunk = Compiler.compile(lambda.getBody());
+            functions.put(lambda.getBody(), chunk);
+        }
+        return chunk;
+    }
+
+    // returns false if the chunk could not be run to its end because the
+    // frame stack is full.
+    private boolean execute(Chunk chunk) {
+        int[] code = chunk.code;
+        ensureStack(sp + chunk.maxStack);
+        Main.Value[] stack = this.stack;
+        int sp = this.sp;
+        int ip = 0;
+        while (true) {
+            final int op = code[ip++];
+            switch (op) {
+                case Chunk.HALT: {
+                    if (fp == 0) {
+                        this.sp = sp;
+                        return true;
+                    }
+                    // the end of a function body: return to the caller
+                    final Main.Lambda lambda = callees[--fp];
+                    callees[fp] = null;
+                    chunk = chunks[fp];
+                    chunks[fp] = null;
+                    code = chunk.code;
+                    ip = returns[fp];
+                    Main.Value retVal = Main.Value.UNSET;
+                    if (!Main.returnVariables.isEmpty())
+                        retVal = Main.returnVariables.pop();
+                    if (Main.closures) Main.table.exitCall();
+                    else if (Main.resolver != null) Main.table.exitFrame(lambda.getFrameNames());
+                    else Main.table.closeScope();
+                    stack[sp++] = retVal;
+                    break;
+                }
+                case Chunk.CONST:
+                    stack[sp++] = chunk.constants[code[ip++]];
+                    break;
+                case Chunk.LOAD: {
+                    final String name = chunk.names[code[ip++]];
+                    stack[sp++] = Main.error ? Main.Value.UNSET : Main.table.lookup(name);
+                    break;
+                }
+                case Chunk.BIND:
+                    Main.table.bind(chunk.names[code[ip++]], stack[--sp]);
+                    break;
+                case Chunk.REBIND:
+                    Main.table.rebing(chunk.names[code[ip++]], stack[--sp]);
+                    break;
+                case Chunk.ADD: {
+                    final int r = stack[--sp].getNumber();
+                    stack[sp - 1] = Main.Value.of(stack[sp - 1].getNumber() + r);
+                    break;
+                }
+                case Chunk.SUB: {
+                    final int r = stack[--sp].getNumber();
+                    stack[sp - 1] = Main.Value.of(stack[sp - 1].getNumber() - r);
+                    break;
+                }
+                case Chunk.MUL: {
+                    final int r = stack[--sp].getNumber();
+                    stack[sp - 1] = Main.Value.of(stack[sp - 1].getNumber() * r);
+                    break;
+                }
+                case Chunk.DIV: {
+                    final int r = stack[--sp].getNumber();
+                    final int l = stack[sp - 1].getNumber();
+                    if (r != 0) {
+                        stack[sp - 1] = Main.Value.of(l / r);
+                    } else {
+                        if (!Main.error) {
+                            Main.out.error("ERROR: Division by zero!");
+                            Main.error = true;
+                        }
+                        stack[sp - 1] = Main.Value.UNSET;
+                    }
+                    break;
+                }
+                case Chunk.LT: {
+                    final int r = stack[--sp].getNumber();
+                    stack[sp - 1] = Main.Value.of(stack[sp - 1].getNumber() < r);
+                    break;
+                }
+                case Chunk.GT: {
+                    final int r = stack[--sp].getNumber();
+                    stack[sp - 1] = Main.Value.of(stack[sp - 1].getNumber() > r);
+                    break;
+                }
+                case Chunk.LE: {
+                    final int r = stack[--sp].getNumber();
+                    stack[sp - 1] = Main.Value.of(stack[sp - 1].getNumber() <= r);
+                    break;
+                }
+                case Chunk.GE: {
+                    final int r = stack[--sp].getNumber();
+                    stack[sp - 1] = Main.Value.of(stack[sp - 1].getNumber() >= r);
+                    break;
+                }
+                case Chunk.EQ: {
+                    final int r = stack[--sp].getNumber();
+                    stack[sp - 1] = Main.Value.of(stack[sp - 1].getNumber() == r);
+                    break;
+                }
+                case Chunk.NE: {
+                    // ComparisonOp has no case for != and yields an unset value
+                    stack[--sp].getNumber();
+                    stack[sp - 1].getNumber();
+                    stack[sp - 1] = Main.Value.UNSET;
+                    break;
+                }
+                case Chunk.AND: {
+                    final boolean r = stack[--sp].getBoolean();
+                    stack[sp - 1] = Main.Value.of(stack[sp - 1].getBoolean() && r);
+                    break;
+                }
+                case Chunk.OR: {
+                    final boolean r = stack[--sp].getBoolean();
+                    stack[sp - 1] = Main.Value.of(stack[sp - 1].getBoolean() || r);
+                    break;
+                }
+                case Chunk.NOT:
+                    stack[sp - 1] = Main.Value.of(!stack[sp - 1].getBoolean());
+                    break;
+                case Chunk.NEG:
+                    stack[sp - 1] = Main.Value.of(-1 * stack[sp - 1].getNumber());
+                    break;
+                case Chunk.POP:
+                    stack[--sp] = null;
+                    break;
+                case Chunk.WRITE: {
+                    final Main.Value val = stack[--sp];
+                    stack[sp] = null;
+                    if (!Main.error)
+                        val.writeTo();
+                    break;
+                }
+                case Chunk.READ:
+                    stack[sp++] = read.eval();
+                    break;
+                case Chunk.LAMBDA: {
+                    // a closure captures its variables anew each time
+                    final Main.Lambda lambda = chunk.constants[code[ip++]].getLambda();
+                    stack[sp++] = lambda.eval();
+                    break;
+                }
+                case Chunk.OPEN_SCOPE:
+                    Main.table.openScope();
+                    break;
+                case Chunk.CLOSE_SCOPE:
+                    Main.table.closeScope();
+                    break;
+                case Chunk.JUMP:
+                    ip = code[ip];
+                    break;
+                case Chunk.JUMP_FALSE:
+                    if (stack[--sp].getBoolean()) ip++;
+                    else ip = code[ip];
+                    break;
+                case Chunk.JUMP_ERROR:
+                    if (Main.error) ip = code[ip];
+                    else ip++;
+                    break;
+                case Chunk.GUARD_ERROR:
+                    if (Main.error) {
+                        stack[sp++] = Main.Value.UNSET;
+                        ip = code[ip];
+                    } else {
+                        ip++;
+                    }
+                    break;
+                case Chunk.CHECK_FUN:
+                    if (stack[sp - 1].getType() == Main.Type.FUN_T) {
+                        ip++;
+                    } else {
+                        Main.out.error("ERROR: Attempting to call a non-function.");
+                        Main.error = true;
+                        stack[sp - 1] = Main.Value.UNSET;
+                        ip = code[ip];
+                    }
+                    break;
+                case Chunk.CALL: {
+                    final int site = code[ip++];
+                    final Main.Value arg = stack[--sp];
+                    final Main.Value fun = stack[--sp];
+                    final Main.Lambda lambda = fun.getLambda();
+                    stack[sp] = null;
+                    stack[sp + 1] = null;
+                    if (fp == maxFrames) {
+                        Main.out.error("ERROR: Maximum call depth of " + maxFrames + " exceeded!");
+                        Main.error = true;
+                        return false;
+                    }
+                    if (Main.closures) Main.table.enterCall(lambda.getFrameNames(), fun.getEnv());
+                    if (Main.resolver != null) Main.table.define(0, lambda.getVariable(), arg);
+                    else Main.table.bind(lambda.getVariable(), arg);
+                    pushFrame(chunk, ip, lambda);
+                    // a call site mostly calls the same lambda; the map is
+                    // only consulted when it calls a different one
+                    if (chunk.callees[site] != lambda) {
+                        chunk.callees[site] = lambda;
+                        chunk.targets[site] = function(lambda);
+                    }
+                    chunk = chunk.targets[site];
+                    code = chunk.code;
+                    ip = 0;
+                    if (sp + chunk.maxStack > stack.length) {
+                        ensureStack(sp + chunk.maxStack);
+                        stack = this.stack;
+                    }
+                    break;
+                }
+                case Chunk.RETURN: {
+                    final Main.Value val = stack[--sp];
+                    stack[sp] = null;
+                    if (!Main.error)
+                        Main.returnVariables.push(val);
+                    break;
+                }
+                case Chunk.LOAD_SLOT: {
+                    final int depth = code[ip++];
+                    final int slot = code[ip++];
+                    final String name = chunk.names[code[ip++]];
+                    stack[sp++] = Main.error ? Main.Value.UNSET : Main.table.load(depth, slot, name);
+                    break;
+                }
+                case Chunk.DEFINE: {
+                    final int slot = code[ip++];
+                    Main.table.define(slot, chunk.names[code[ip++]], stack[--sp]);
+                    break;
+                }
+                case Chunk.ASSIGN: {
+                    final int depth = code[ip++];
+                    final int slot = code[ip++];
+                    Main.table.assign(depth, slot, chunk.names[code[ip++]], stack[--sp]);
+                    break;
+                }
+                case Chunk.ENTER:
+                    Main.table.enterFrame(chunk.layouts[code[ip++]]);
+                    break;
+                case Chunk.EXIT:
+                    Main.table.exitFrame(chunk.layouts[code[ip++]]);
+                    break;
+                case Chunk.OPEN_CALL:
+                    Main.table.enterFrame(stack[sp - 1].getLambda().getFrameNames());
+                    break;
+                default:
+                    throw new Error("invalid opcode " + op);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import benchmarks.Workload;
+
+import java.util.List;
+
+// the work measured by the benchmarks. Every method takes the size of its
+// input, does all the preparation, and returns only what is to be timed.
+// The front end is the same for every engine; the other methods also take
+// the engine to use: "default", "slots", "vm" or "cc", as chosen by the
+// interpreter's flags.
+public final class InterpreterWorkloads {
+    private InterpreterWorkloads() { }
+
+    // lexing a program of the given number of statements into tokens.
+    public static Workload lex(int size) {
+        final String source = program(size);
+        return () -> new Lexer(source).getTokens();
+    }
+
+    // parsing the tokens of such a program.
+    public static Workload parse(int size) {
+        final List<Token> tokens = new Lexer(program(size)).getTokens();
+        return () -> new Parser(tokens).init();
+    }
+
+    // lexing and parsing such a program in one pass, as Main run does,
+    // without a list of all its tokens.
+    public static Workload stream(int size) {
+        final String source = program(size);
+        return () -> new Parser(new Lexer(source)).init();
+    }
+
+    // printing the tree of such a program.
+    public static Workload print(int size) {
+        final Main.Stmt stmt = new Parser(new Lexer(program(size))).init();
+        return () -> PrettyPrinter.printAST(stmt);
+    }
+
+    // opening a scope, binding the given number of variables in it,
+    // looking each one up and rebinding it, and closing the scope again.
+    public static Workload scopes(String engine, int size) {
+        configure(engine);
+        final Main.SymbolTable table = Main.table;
+        final String[] names = new String[size];
+        for (int i = 0; i < size; i++)
+            names[i] = "v" + i;
+        if (Main.resolver != null) {
+            return () -> {
+                table.enterFrame(names);
+                for (int i = 0; i < size; i++)
+                    table.define(i, names[i], Main.Value.of(i));
+                int sum = 0;
+                for (int i = 0; i < size; i++) {
+                    sum += table.load(0, i, names[i]).getNumber();
+                    table.assign(0, i, names[i], Main.Value.of(sum));
+                }
+                table.exitFrame(names);
+                return sum;
+            };
+        }
+        return () -> {
+            table.openScope();
+            for (int i = 0; i < size; i++)
+                table.bind(names[i], Main.Value.of(i));
+            int sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += table.lookup(names[i]).getNumber();
+                table.rebing(names[i], Main.Value.of(sum));
+            }
+            table.closeScope();
+            return sum;
+        };
+    }
+
+    // a while loop of the given number of iterations doing arithmetic.
+    public static Workload loop(String engine, int size) {
+        return execute(engine, "{ auto i := 0; auto s := 0; while (i < " + size + ") {"
+                + " s := s + i * 3 - (i / 2); i := i + 1; } }");
+    }
+
+    // the naive recursive Fibonacci function of the given number.
+    public static Workload fib(String engine, int size) {
+        return execute(engine, "{ auto fib := lambda k { ifelse k < 2 { ret := k; }"
+                + " { ret := (fib @ (k - 1)) + (fib @ (k - 2)); } }; auto r := fib @ " + size + "; }");
+    }
+
+    // runs a program that leaves no bindings behind, as Main.run() does.
+    private static Workload execute(String engine, String source) {
+        configure(engine);
+        final Runnable program = Main.prepare(new Parser(new Lexer(source)).program());
+        return () -> {
+            program.run();
+            if (Main.error) throw new IllegalStateException("the program failed: " + source);
+            return Main.table;
+        };
+    }
+
+    // sets the interpreter up for the engine, as its flags would, with a
+    // new symbol table and no output.
+    static void configure(String engine) {
+        Main.resolver = null;
+        Main.closures = false;
+        Main.vm = null;
+        Main.closureCompile = false;
+        Main.jit = null;
+        Main.optimize = false;
+        Main.profiler = null;
+        Main.memoize = false;
+        switch (engine) {
+            case "default" -> { }
+            case "slots" -> Main.resolver = new Resolver();
+            case "vm" -> Main.vm = new VM();
+            case "cc" -> Main.closureCompile = true;
+            default -> throw new IllegalArgumentException("unknown engine: " + engine);
+        }
+        Main.out = Output.discard();
+        Main.error = false;
+        Main.table = new Main.SymbolTable();
+        Main.table.setTrace(false);
+        Main.table.openScope();
+    }
+
+    // a block of n statements: one declaration followed by assignments.
+    private static String program(int n) {
+        final StringBuilder sb = new StringBuilder(n * 24);
+        sb.append("{ auto x := 0;\n");
+        for (int i = 1; i < n; i++)
+            sb.append("x := (x + ").append(i % 10).append(") * 2 - x / 3;\n");
+        return sb.append("}\n").toString();
+    }
+}
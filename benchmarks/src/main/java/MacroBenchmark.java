@@ -0,0 +1,177 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+// runs whole programs and reports, per program, the time to lex, parse,
+// prepare and execute it and the peak heap used, as CSV on standard
+// output. It either runs the programs of a corpus directory, or sweeps
+// one parameter of the ProgramGenerator over a list of values to show how
+// the interpreter scales with it:
+//
+//     java -cp benchmarks/target/benchmarks.jar MacroBenchmark corpus benchmarks/corpus
+//     java -cp benchmarks/target/benchmarks.jar MacroBenchmark sweep statements 1000,10000,100000 trips=0
+//
+// Times are the best of the runs, after one untimed run that warms the
+// JVM up; the peak heap is the largest of the runs.
+public final class MacroBenchmark {
+    private static final String[] PARAMETERS = {"statements", "depth", "trips", "recursion", "variables"};
+
+    private String engine = "default";
+    private boolean optimize = false;
+    private int runs = 3;
+
+    private MacroBenchmark() { }
+
+    public static void main(String[] args) throws Exception {
+        final MacroBenchmark benchmark = new MacroBenchmark();
+        // deep recursion in the programs needs a deep Java stack
+        final Throwable[] failure = new Throwable[1];
+        final Thread thread = new Thread(null, () -> {
+            try {
+                benchmark.run(args);
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        }, "macro-benchmark", 1L << 30);
+        thread.start();
+        thread.join();
+        if (failure[0] instanceof IOException) {
+            System.err.println("ERROR: " + failure[0].getMessage());
+            System.exit(1);
+        } else if (failure[0] != null) {
+            throw new RuntimeException(failure[0]);
+        }
+    }
+
+    private void run(String[] args) throws IOException {
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            if ("-engine".equals(args[i]) && i + 1 < args.length) engine = args[++i];
+            else if ("-O".equals(args[i])) optimize = true;
+            else if ("-runs".equals(args[i]) && i + 1 < args.length) runs = Integer.parseInt(args[++i]);
+            else usage();
+        }
+        if (i + 2 <= args.length && "corpus".equals(args[i])) corpus(Path.of(args[i + 1]));
+        else if (i + 3 <= args.length && "sweep".equals(args[i])) sweep(args[i + 1], args[i + 2], args, i + 3);
+        else usage();
+    }
+
+    private void corpus(Path dir) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        try (Stream<Path> list = Files.list(dir)) {
+            list.filter(p -> p.toString().endsWith(".mbh")).sorted().forEach(files::add);
+        }
+        System.out.println("program," + Result.HEADER);
+        for (Path file : files)
+            System.out.println(file.getFileName() + "," + measure(Files.readString(file)));
+    }
+
+    // generates a program for every value of the parameter; the others
+    // keep their defaults unless they are given as name=value.
+    private void sweep(String parameter, String values, String[] args, int from) {
+        final int[] shape = {1000, 2, 10, 0, 8};
+        final int swept = parameter(parameter);
+        for (int i = from; i < args.length; i++) {
+            final int eq = args[i].indexOf('=');
+            if (eq < 0) usage();
+            shape[parameter(args[i].substring(0, eq))] = Integer.parseInt(args[i].substring(eq + 1));
+        }
+        System.out.println(String.join(",", PARAMETERS) + "," + Result.HEADER);
+        for (String value : values.split(",")) {
+            shape[swept] = Integer.parseInt(value);
+            final String source = new ProgramGenerator(shape[0], shape[1], shape[2], shape[3], shape[4]).generate();
+            final StringBuilder row = new StringBuilder();
+            for (int n : shape)
+                row.append(n).append(',');
+            System.out.println(row.append(measure(source)));
+        }
+    }
+
+    private static int parameter(String name) {
+        for (int i = 0; i < PARAMETERS.length; i++)
+            if (PARAMETERS[i].equals(name)) return i;
+        usage();
+        return -1;
+    }
+
+    private Result measure(String source) {
+        once(source, new Result(source.length()));
+        final Result result = new Result(source.length());
+        for (int i = 0; i < runs; i++)
+            once(source, result);
+        return result;
+    }
+
+    // runs the program from its source on a new symbol table.
+    private void once(String source, Result result) {
+        InterpreterWorkloads.configure(engine);
+        Main.optimize = optimize;
+        Main.interactive = false;
+        System.gc();
+        final List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                pools.add(pool);
+            }
+        }
+        final long start = System.nanoTime();
+        final List<Token> tokens = new Lexer(source).getTokens();
+        final long lexed = System.nanoTime();
+        final Main.Stmt stmt = new Parser(tokens).program();
+        final long parsed = System.nanoTime();
+        final Runnable program = Main.prepare(stmt);
+        final long prepared = System.nanoTime();
+        program.run();
+        final long executed = System.nanoTime();
+        long peak = 0;
+        for (MemoryPoolMXBean pool : pools)
+            peak += pool.getPeakUsage().getUsed();
+        result.add(lexed - start, parsed - lexed, prepared - parsed, executed - prepared, peak, Main.error);
+    }
+
+    private static void usage() {
+        System.err.println("usage: MacroBenchmark [-engine default|slots|vm|cc] [-O] [-runs <n>] corpus <dir>");
+        System.err.println("       MacroBenchmark [-engine default|slots|vm|cc] [-O] [-runs <n>] sweep <parameter> <value,...> [<parameter>=<value>...]");
+        System.err.println("       where the parameters are " + String.join(", ", PARAMETERS));
+        System.exit(2);
+    }
+
+    // the best times and the largest peak heap of the runs of a program.
+    private static final class Result {
+        static final String HEADER = "bytes,lex_ms,parse_ms,prepare_ms,exec_ms,peak_heap_mb,status";
+
+        private final int bytes;
+        private long lex = Long.MAX_VALUE;
+        private long parse = Long.MAX_VALUE;
+        private long prepare = Long.MAX_VALUE;
+        private long exec = Long.MAX_VALUE;
+        private long peak = 0;
+        private boolean failed = false;
+
+        Result(int bytes) {
+            this.bytes = bytes;
+        }
+
+        void add(long lex, long parse, long prepare, long exec, long peak, boolean failed) {
+            this.lex = Math.min(this.lex, lex);
+            this.parse = Math.min(this.parse, parse);
+            this.prepare = Math.min(this.prepare, prepare);
+            this.exec = Math.min(this.exec, exec);
+            this.peak = Math.max(this.peak, peak);
+            this.failed |= failed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d,%.2f,%.2f,%.2f,%.2f,%.1f,%s", bytes, lex / 1e6, parse / 1e6, prepare / 1e6,
+                    exec / 1e6, peak / (1024.0 * 1024.0), failed ? "error" : "ok");
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.Random;
+
+// generates valid programs of a given shape for the macro benchmarks:
+//
+//   statements  the number of assignments, spread over the nesting levels
+//   depth       how deeply loops and blocks are nested in each other
+//   trips       the iterations of every loop; with none, only blocks nest
+//   recursion   the depth of the recursive call made by every tenth
+//               assignment; with none, no calls are made
+//   variables   the number of variables that are live throughout
+//
+// Loops and blocks alternate from one level to the next. Every level
+// keeps an equal share of the assignments, so the work in the innermost
+// level grows with the trips to the power of the loops around it. The
+// same shape always generates the same program, which runs without
+// errors and ends by writing a sum of its variables.
+public final class ProgramGenerator {
+    private static final long SEED = 42;
+
+    private final int statements;
+    private final int depth;
+    private final int trips;
+    private final int recursion;
+    private final int variables;
+
+    private final StringBuilder sb = new StringBuilder();
+    private Random random;
+
+    public ProgramGenerator(int statements, int depth, int trips, int recursion, int variables) {
+        if (statements < 0 || depth < 0 || trips < 0 || recursion < 0 || variables < 1)
+            throw new IllegalArgumentException("invalid program shape");
+        this.statements = statements;
+        this.depth = depth;
+        this.trips = trips;
+        this.recursion = recursion;
+        this.variables = variables;
+    }
+
+    public String generate() {
+        sb.setLength(0);
+        random = new Random(SEED);
+        for (int i = 0; i < variables; i++)
+            sb.append("auto ").append(variable(i)).append(" := ").append(i % 10 + 1).append(";\n");
+        if (recursion > 0)
+            sb.append("auto rec := lambda n { ifelse n < 1 { ret := 0; } { ret := 1 + (rec @ (n - 1)); } };\n");
+        sequence(statements, 0);
+        sb.append("write ").append(variable(0));
+        for (int i = 1; i < variables; i++)
+            sb.append(" + ").append(variable(i));
+        return sb.append(";\n").toString();
+    }
+
+    // emits the given number of assignments at a nesting level and below.
+    private void sequence(int count, int level) {
+        final int own = level < depth ? count / (depth - level + 1) : count;
+        for (int i = 0; i < own; i++)
+            assignment(level);
+        if (level == depth) return;
+        indent(level);
+        if (trips > 0 && level % 2 == 0) {
+            // a block of its own, so that loops of the same level can
+            // declare the same counter
+            final String counter = counter(level);
+            sb.append("{ auto ").append(counter).append(" := 0; while (").append(counter)
+                    .append(" < ").append(trips).append(") {\n");
+            sequence(count - own, level + 1);
+            indent(level + 1);
+            sb.append(counter).append(" := ").append(counter).append(" + 1;\n");
+            indent(level);
+            sb.append("} }\n");
+        } else {
+            sb.append("{\n");
+            sequence(count - own, level + 1);
+            indent(level);
+            sb.append("}\n");
+        }
+    }
+
+    // an assignment of arithmetic over the variables and, in loops, their
+    // counters; it divides only by constants, so it cannot fail.
+    private void assignment(int level) {
+        indent(level);
+        final String target = variable(random.nextInt(variables));
+        sb.append(target).append(" := ");
+        if (recursion > 0 && random.nextInt(10) == 0) {
+            sb.append(target).append(" + (rec @ ").append(recursion).append(");\n");
+            return;
+        }
+        sb.append('(').append(operand(level)).append(" + ").append(operand(level)).append(" * ")
+                .append(1 + random.nextInt(9)).append(") - ").append(operand(level)).append(" / ")
+                .append(2 + random.nextInt(8)).append(";\n");
+    }
+
+    private String operand(int level) {
+        // the counters of the loops around the statement, which are the
+        // even levels below it
+        final int loops = trips > 0 ? (level + 1) / 2 : 0;
+        if (loops > 0 && random.nextInt(4) == 0)
+            return counter(2 * random.nextInt(loops));
+        return variable(random.nextInt(variables));
+    }
+
+    private void indent(int level) {
+        sb.append("  ".repeat(level));
+    }
+
+    // names are made of letters only; none of them is a keyword.
+    private static String variable(int i) {
+        return "v" + letters(i);
+    }
+
+    private static String counter(int level) {
+        return "c" + letters(level);
+    }
+
+    private static String letters(int i) {
+        final StringBuilder name = new StringBuilder();
+        do {
+            name.insert(0, (char) ('a' + i % 26));
+            i = i / 26 - 1;
+        } while (i >= 0);
+        return name.toString();
+    }
+}
@@ -0,0 +1,47 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// running an arithmetic loop of 10000 iterations and a recursive function
+// of 21891 calls, with each engine.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ExecutionBenchmark {
+    @Param({"default", "slots", "vm", "cc"})
+    public String engine;
+
+    private Workload loop;
+    private Workload fib;
+
+    @Setup
+    public void setUp() {
+        loop = Workload.of("loop", engine, 10_000);
+        fib = Workload.of("fib", engine, 20);
+    }
+
+    @Benchmark
+    public Object arithmeticLoop() {
+        return loop.run();
+    }
+
+    @Benchmark
+    public Object recursiveCall() {
+        return fib.run();
+    }
+}
@@ -0,0 +1,56 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// lexing and parsing programs of a given number of statements, separately
+// and in one pass. The sizes grow tenfold, so that the time per statement,
+// the score divided by the size, shows whether the front end stays linear.
+// The tokens and tree of a million statements need a heap of a few GB.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FrontEndBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int statements;
+
+    private Workload lex;
+    private Workload parse;
+    private Workload stream;
+
+    @Setup
+    public void setUp() {
+        lex = Workload.of("lex", statements);
+        parse = Workload.of("parse", statements);
+        stream = Workload.of("stream", statements);
+    }
+
+    @Benchmark
+    public Object lex() {
+        return lex.run();
+    }
+
+    @Benchmark
+    public Object parse() {
+        return parse.run();
+    }
+
+    @Benchmark
+    public Object stream() {
+        return stream.run();
+    }
+}
@@ -0,0 +1,41 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// printing the tree of a program of a given number of statements. Every
+// statement is printed one level deeper than the one before it, so the
+// output grows with the square of the length of a sequence.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PrinterBenchmark {
+    @Param({"100", "1000"})
+    public int statements;
+
+    private Workload print;
+
+    @Setup
+    public void setUp() {
+        print = Workload.of("print", statements);
+    }
+
+    @Benchmark
+    public Object printAST() {
+        return print.run();
+    }
+}
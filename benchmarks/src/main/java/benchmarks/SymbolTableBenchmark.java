@@ -0,0 +1,43 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// a scope of a given number of variables bound, looked up, rebound and
+// closed again, in the binding map or in frame slots.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SymbolTableBenchmark {
+    @Param({"default", "slots"})
+    public String engine;
+
+    @Param({"4", "64"})
+    public int variables;
+
+    private Workload scopes;
+
+    @Setup
+    public void setUp() {
+        scopes = Workload.of("scopes", engine, variables);
+    }
+
+    @Benchmark
+    public Object scopeChurn() {
+        return scopes.run();
+    }
+}
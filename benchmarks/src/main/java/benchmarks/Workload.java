@@ -0,0 +1,33 @@
+package benchmarks;
+
+// a piece of interpreter work to measure. JMH needs benchmarks to be in a
+// named package, from where the interpreter's classes in the default
+// package cannot be named; so the work is set up by InterpreterWorkloads,
+// in the default package, and only reached through this interface.
+public interface Workload {
+    Object run();
+
+    // prepares the workload made by the method of InterpreterWorkloads
+    // with the given name, for an engine and an input size.
+    static Workload of(String name, String engine, int size) {
+        try {
+            return (Workload) Class.forName("InterpreterWorkloads")
+                    .getMethod(name, String.class, int.class)
+                    .invoke(null, engine, size);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot prepare workload " + name, e);
+        }
+    }
+
+    // prepares a workload of the front end, which is the same for every
+    // engine.
+    static Workload of(String name, int size) {
+        try {
+            return (Workload) Class.forName("InterpreterWorkloads")
+                    .getMethod(name, int.class)
+                    .invoke(null, size);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot prepare workload " + name, e);
+        }
+    }
+}
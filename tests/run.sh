@@ -0,0 +1,41 @@
+#!/bin/sh
+# runs every program in this directory with each engine and compares what
+# it prints, on standard output and error, and its exit status with the
+# .out file next to it. A program reads its .in file, if it has one.
+#
+#   javac -d out *.java && sh tests/run.sh out
+#
+# mvn -B test runs it against the classes of the interpreter module. A new
+# program's .out is what the default engine prints, followed by a line
+# with its exit status:
+#
+#   java -Xss1g -cp out Main run f.mbh > f.out 2>&1; echo "exit $?" >> f.out
+#
+# The stack is large enough for the tree walkers to recurse 100000 deep, and
+# a run that takes longer than half a minute fails, which is how an engine that
+# has become quadratic in the depth of the stack shows up.
+
+classes=${1:-out}
+dir=$(dirname "$0")
+failed=0
+count=0
+limit=
+command -v timeout > /dev/null && limit="timeout 20"
+
+for program in "$dir"/*.mbh; do
+    name=${program%.mbh}
+    in=
+    [ -f "$name.in" ] && in="-in $name.in"
+    for engine in "" -slots -closures -cc -vm -O -jit -memo; do
+        count=$((count + 1))
+        actual=$( ($limit java -Xss1g -cp "$classes" Main run $engine $in "$program" 2>&1; echo "exit $?") )
+        if [ "$actual" != "$(cat "$name.out")" ]; then
+            echo "FAILED: $(basename "$program") ${engine:-(default)}"
+            printf '%s\n' "$actual" | diff "$name.out" - | head -20
+            failed=$((failed + 1))
+        fi
+    done
+done
+
+echo "$((count - failed)) of $count runs as expected"
+[ "$failed" -eq 0 ]